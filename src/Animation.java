@@ -0,0 +1,49 @@
+// Animation class
+// a keyframed track: a list of values (a transform, or the camera parameters) given at
+// some frames, and linearly interpolated in between. before the first key and after
+// the last one, the track holds the value of that key.
+
+import javax.vecmath.*;
+import java.util.*;
+
+public class Animation {
+
+	private TreeMap<Float, float[]> keys = new TreeMap<Float, float[]> ();
+
+	public void addKey(float frame, float values[]) {
+		keys.put(frame, values.clone());
+	}
+
+	// returns the values of the track at frame
+	public float[] evaluate(float frame) {
+		Map.Entry<Float, float[]> lo = keys.floorEntry(frame);
+		Map.Entry<Float, float[]> hi = keys.ceilingEntry(frame);
+		if (lo == null)
+			return hi.getValue().clone();
+		if (hi == null || lo.getKey().equals(hi.getKey()))
+			return lo.getValue().clone();
+		float f = (frame - lo.getKey()) / (hi.getKey() - lo.getKey());
+		float a[] = lo.getValue();
+		float b[] = hi.getValue();
+		float out[] = new float[a.length];
+		for (int k = 0; k < a.length; k++)
+			out[k] = a[k] + f * (b[k] - a[k]);
+		return out;
+	}
+
+	// builds the transform of the values tx ty tz rx ry rz s: a uniform scale by s,
+	// then rotations in degrees about x, y and z, then a translation by (tx, ty, tz)
+	public static Matrix4f toTransform(float v[]) {
+		Matrix4f m = new Matrix4f();
+		Matrix4f r = new Matrix4f();
+		m.rotZ((float)Math.toRadians(v[5]));
+		r.rotY((float)Math.toRadians(v[4]));
+		m.mul(r);
+		r.rotX((float)Math.toRadians(v[3]));
+		m.mul(r);
+		m.mul(v[6]);
+		m.m33 = 1.f;
+		m.setTranslation(new Vector3f(v[0], v[1], v[2]));
+		return m;
+	}
+}
@@ -0,0 +1,47 @@
+// AreaLight class
+// defines a square light in the xz plane, facing down
+// unlike the 'area' light type, which is split into a fixed grid of point lights,
+// this light picks a new point on the square for every sample it is given.
+
+import javax.vecmath.*;
+
+public class AreaLight extends Light
+{
+	AreaLight(Vector3f pos, float _size, Color3f intens)
+	{
+		position = new Vector3f(pos);
+		size = _size;
+		intensity = new Color3f(intens);
+	}
+
+	public Color3f getLight(Vector3f p, Vector3f lightPos, Vector3f lightDir)
+	{
+		return sampleLight(p, 0.5f, 0.5f, lightPos, lightDir);
+	}
+
+	public Color3f sampleLight(Vector3f p, float u, float v, Vector3f lightPos, Vector3f lightDir)
+	{
+		lightPos.set(position.x + (u - 0.5f) * size, position.y, position.z + (v - 0.5f) * size);
+		lightDir.set(lightPos);
+		lightDir.sub(p);
+		float r = lightDir.length();
+		Color3f lightIntens = new Color3f(intensity);
+		lightIntens.scale(1.f / (r*r));			// distance quadratic fall-off
+		lightDir.normalize();
+		return lightIntens;
+	}
+
+	// the light stays a square in the xz plane: only its center is moved
+	public void setTransform(Matrix4f m)
+	{
+		if (rest_position == null)
+			rest_position = new Vector3f(position);
+		Point3f p = new Point3f(rest_position);
+		m.transform(p);
+		position = new Vector3f(p);
+	}
+
+	private Vector3f position;	// center of the light
+	private Vector3f rest_position = null;	// center as given, kept once the light is animated
+	private float size;			// length of the sides of the light
+}
@@ -0,0 +1,308 @@
+// BVH class
+// a bounding volume hierarchy over the shapes of the scene
+// shapes with finite bounds are sorted into a binary tree of axis-aligned boxes, so a
+// ray only tests the shapes whose boxes it passes through; unbounded shapes (planes)
+// are tested against every ray. when shapes move, refit updates the boxes of the
+// existing tree instead of building a new one; needsRebuild reports when the refitted
+// tree has become too loose to be worth keeping.
+// hits are resolved exactly like a linear scan over the shapes: the nearest hit wins,
+// and among hits at the same distance the shape added last wins.
+
+import javax.vecmath.*;
+import java.util.*;
+
+public class BVH {
+
+	private static final int LEAF_SIZE = 4;		// max shapes per leaf
+	private static final float REBUILD_RATIO = 1.5f;	// rebuild when the cost grows by this factor
+
+	private Vector<Shape> scene;	// shapes of the scene, copied into shapes[] by build
+	private Shape shapes[];			// array copy, so traversal avoids Vector's synchronized get
+	private int bounded[];			// indices of the shapes with finite bounds, in tree order
+	private int unbounded[];		// indices of the shapes without bounds
+
+	// node arrays: box, and either two children (count == 0) or a range of bounded[]
+	private float box[];			// min x,y,z and max x,y,z of each node
+	private int first[];			// leaf: first entry in bounded[]; inner: left child (right is next)
+	private int count[];			// leaf: number of shapes; inner: 0
+	private int nodes;
+	private float build_cost;		// cost of the tree when it was built
+
+	public BVH(Vector<Shape> _shapes) {
+		scene = _shapes;
+		build();
+	}
+
+	// build a new tree, splitting at the median centroid along the longest axis
+	public void build() {
+		shapes = scene.toArray(new Shape[0]);
+		int n = shapes.length;
+		int nb = 0;
+		float bounds[] = new float[n * 6];
+		Vector3f min = new Vector3f();
+		Vector3f max = new Vector3f();
+		boolean is_bounded[] = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			if (shapes[i].bounds(min, max)) {
+				is_bounded[i] = true;
+				setBox(bounds, i, min, max);
+				nb++;
+			}
+		}
+		bounded = new int[nb];
+		unbounded = new int[n - nb];
+		int b = 0, u = 0;
+		for (int i = 0; i < n; i++) {
+			if (is_bounded[i])
+				bounded[b++] = i;
+			else
+				unbounded[u++] = i;
+		}
+
+		int max_nodes = Math.max(2 * nb, 1);
+		box = new float[max_nodes * 6];
+		first = new int[max_nodes];
+		count = new int[max_nodes];
+		nodes = 1;
+		if (nb > 0)
+			buildNode(0, 0, nb, bounds);
+		else
+			emptyNode(0);
+		build_cost = cost();
+	}
+
+	private void buildNode(int node, int start, int end, float bounds[]) {
+		// box of the node, and of the shape centroids
+		float cmin[] = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float cmax[] = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for (int k = 0; k < 6; k++)
+			box[node*6+k] = (k < 3) ? Float.MAX_VALUE : -Float.MAX_VALUE;
+		for (int i = start; i < end; i++) {
+			int s = bounded[i];
+			for (int a = 0; a < 3; a++) {
+				box[node*6+a] = Math.min(box[node*6+a], bounds[s*6+a]);
+				box[node*6+3+a] = Math.max(box[node*6+3+a], bounds[s*6+3+a]);
+				float c = 0.5f * (bounds[s*6+a] + bounds[s*6+3+a]);
+				cmin[a] = Math.min(cmin[a], c);
+				cmax[a] = Math.max(cmax[a], c);
+			}
+		}
+		if (end - start <= LEAF_SIZE) {
+			first[node] = start;
+			count[node] = end - start;
+			return;
+		}
+
+		int axis = 0;
+		for (int a = 1; a < 3; a++) {
+			if (cmax[a] - cmin[a] > cmax[axis] - cmin[axis])
+				axis = a;
+		}
+		final int sort_axis = axis;
+		final float centroids[] = bounds;
+		Integer order[] = new Integer[end - start];
+		for (int i = start; i < end; i++)
+			order[i - start] = bounded[i];
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer x, Integer y) {
+				return Float.compare(centroids[x*6+sort_axis] + centroids[x*6+3+sort_axis],
+									 centroids[y*6+sort_axis] + centroids[y*6+3+sort_axis]);
+			}
+		});
+		for (int i = start; i < end; i++)
+			bounded[i] = order[i - start];
+
+		int mid = (start + end) / 2;
+		int left = nodes;
+		nodes += 2;
+		first[node] = left;
+		count[node] = 0;
+		buildNode(left, start, mid, bounds);
+		buildNode(left + 1, mid, end, bounds);
+	}
+
+	private void emptyNode(int node) {
+		for (int k = 0; k < 6; k++)
+			box[node*6+k] = (k < 3) ? Float.MAX_VALUE : -Float.MAX_VALUE;
+		first[node] = 0;
+		count[node] = 0;
+	}
+
+	private static void setBox(float bounds[], int i, Vector3f min, Vector3f max) {
+		bounds[i*6] = min.x;
+		bounds[i*6+1] = min.y;
+		bounds[i*6+2] = min.z;
+		bounds[i*6+3] = max.x;
+		bounds[i*6+4] = max.y;
+		bounds[i*6+5] = max.z;
+	}
+
+	// update the boxes of the tree after shapes have moved, keeping its structure.
+	// children are always stored after their parent, so a backward pass visits them first
+	public void refit() {
+		Vector3f min = new Vector3f();
+		Vector3f max = new Vector3f();
+		for (int node = nodes - 1; node >= 0; node--) {
+			if (bounded.length == 0)
+				break;
+			for (int k = 0; k < 6; k++)
+				box[node*6+k] = (k < 3) ? Float.MAX_VALUE : -Float.MAX_VALUE;
+			if (count[node] > 0) {
+				for (int i = first[node]; i < first[node] + count[node]; i++) {
+					shapes[bounded[i]].bounds(min, max);
+					grow(node, min.x, min.y, min.z, max.x, max.y, max.z);
+				}
+			} else {
+				for (int c = first[node]; c <= first[node] + 1; c++) {
+					grow(node, box[c*6], box[c*6+1], box[c*6+2], box[c*6+3], box[c*6+4], box[c*6+5]);
+				}
+			}
+		}
+	}
+
+	private void grow(int node, float x0, float y0, float z0, float x1, float y1, float z1) {
+		box[node*6] = Math.min(box[node*6], x0);
+		box[node*6+1] = Math.min(box[node*6+1], y0);
+		box[node*6+2] = Math.min(box[node*6+2], z0);
+		box[node*6+3] = Math.max(box[node*6+3], x1);
+		box[node*6+4] = Math.max(box[node*6+4], y1);
+		box[node*6+5] = Math.max(box[node*6+5], z1);
+	}
+
+	// returns true if refitting has made the tree much more expensive to traverse
+	// than it was when it was built
+	public boolean needsRebuild() {
+		return cost() > REBUILD_RATIO * build_cost;
+	}
+
+	// surface area heuristic cost of the tree: the expected number of node visits and
+	// shape tests for a ray that hits the root, relative to the area of the root
+	private float cost() {
+		float root = area(0);
+		if (root <= 0.f)
+			return 0.f;
+		float total = 0.f;
+		for (int node = 0; node < nodes; node++)
+			total += area(node) / root * ((count[node] > 0) ? count[node] : 1);
+		return total;
+	}
+
+	private float area(int node) {
+		float dx = box[node*6+3] - box[node*6];
+		float dy = box[node*6+4] - box[node*6+1];
+		float dz = box[node*6+5] - box[node*6+2];
+		if (dx < 0 || dy < 0 || dz < 0)
+			return 0.f;
+		return 2.f * (dx*dy + dy*dz + dz*dx);
+	}
+
+	// returns the nearest hit between tmin and tmax, or null
+	public HitRecord hit(Ray ray, float tmin, float tmax) {
+		HitRecord best = null;
+		int best_index = -1;
+		for (int k = 0; k < unbounded.length; k++) {
+			HitRecord h = shapes[unbounded[k]].hit(ray, tmin, tmax);
+			if (h != null && (h.t < tmax || unbounded[k] > best_index)) {
+				tmax = h.t;
+				best = h;
+				best_index = unbounded[k];
+			}
+		}
+		if (bounded.length == 0)
+			return best;
+
+		float inv[] = {1.f / ray.d.x, 1.f / ray.d.y, 1.f / ray.d.z};
+		int stack[] = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (boxEntry(box, node, ray, inv, tmin, tmax) == Float.MAX_VALUE)
+				continue;
+			if (count[node] > 0) {
+				for (int i = first[node]; i < first[node] + count[node]; i++) {
+					int s = bounded[i];
+					HitRecord h = shapes[s].hit(ray, tmin, tmax);
+					// same as the linear scan: nearer wins, and on a tie the later shape
+					if (h != null && (h.t < tmax || best == null || s > best_index)) {
+						tmax = h.t;
+						best = h;
+						best_index = s;
+					}
+				}
+			} else {
+				// visit the nearer child first
+				int left = first[node];
+				float tl = boxEntry(box, left, ray, inv, tmin, tmax);
+				float tr = boxEntry(box, left + 1, ray, inv, tmin, tmax);
+				if (tl <= tr) {
+					if (tr != Float.MAX_VALUE) stack[top++] = left + 1;
+					if (tl != Float.MAX_VALUE) stack[top++] = left;
+				} else {
+					if (tl != Float.MAX_VALUE) stack[top++] = left;
+					stack[top++] = left + 1;
+				}
+			}
+		}
+		return best;
+	}
+
+	// returns true if any shape is hit between tmin and tmax
+	public boolean shadowHit(Ray ray, float tmin, float tmax) {
+		for (int k = 0; k < unbounded.length; k++) {
+			if (shapes[unbounded[k]].shadowHit(ray, tmin, tmax))
+				return true;
+		}
+		if (bounded.length == 0)
+			return false;
+
+		float inv[] = {1.f / ray.d.x, 1.f / ray.d.y, 1.f / ray.d.z};
+		int stack[] = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (boxEntry(box, node, ray, inv, tmin, tmax) == Float.MAX_VALUE)
+				continue;
+			if (count[node] > 0) {
+				for (int i = first[node]; i < first[node] + count[node]; i++) {
+					if (shapes[bounded[i]].shadowHit(ray, tmin, tmax))
+						return true;
+				}
+			} else {
+				stack[top++] = first[node];
+				stack[top++] = first[node] + 1;
+			}
+		}
+		return false;
+	}
+
+	// returns the distance at which the ray enters box node of the box array (min x,y,z
+	// and max x,y,z per node) within [tmin, tmax], or Float.MAX_VALUE if it misses or
+	// the box is empty. inv holds the inverse of the ray direction. the box is padded
+	// slightly, so shapes lying on its faces are never culled by rounding
+	static float boxEntry(float box[], int node, Ray ray, float inv[], float tmin, float tmax) {
+		if (box[node*6] > box[node*6+3])
+			return Float.MAX_VALUE;
+		float t0 = tmin, t1 = tmax;
+		for (int a = 0; a < 3; a++) {
+			float lo = box[node*6+a];
+			float hi = box[node*6+3+a];
+			float pad = 1e-4f * (hi - lo) + 1e-5f * Math.max(Math.abs(lo), Math.abs(hi)) + 1e-6f;
+			float o = (a == 0) ? ray.o.x : (a == 1) ? ray.o.y : ray.o.z;
+			float near = (lo - pad - o) * inv[a];
+			float far = (hi + pad - o) * inv[a];
+			if (near > far) {
+				float tmp = near;
+				near = far;
+				far = tmp;
+			}
+			// NaN (ray parallel to and on a face) leaves the interval unchanged
+			if (near > t0) t0 = near;
+			if (far < t1) t1 = far;
+			if (t0 > t1)
+				return Float.MAX_VALUE;
+		}
+		return t0;
+	}
+}
@@ -13,6 +13,10 @@ public class Camera {
 
 	// ****
 	private Vector3f center, corner, across;
+	private Vector3f U, V, W;	// camera basis: right, up, and backward (opposite of gaze)
+	private float left, right, bottom, top;	// extents of the image plane at distance 1
+	private float lens_radius = 0.f;	// radius of the thin lens aperture, 0 for a pinhole camera
+	private float focus_dist = 1.f;		// distance from the eye to the plane in focus
 
 	public Camera(Vector3f _eye, Vector3f _at, Vector3f _up,
 					float _fovy, float _ratio)	{
@@ -28,19 +32,19 @@ public class Camera {
 		/* Code for initializing camera
 		 * Compute the four corner points of the camera's image plane */
 		float dist = 1.f;
-		float top = dist * (float)Math.tan(fovy * Math.PI / 360.f);
-		float bottom = -top;
-		float right = aspect_ratio * top;
-		float left = -right;
+		top = dist * (float)Math.tan(fovy * Math.PI / 360.f);
+		bottom = -top;
+		right = aspect_ratio * top;
+		left = -right;
 		Vector3f gaze = new Vector3f();
 		gaze.sub(at, eye);
 
 		center = eye;
-		Vector3f W = gaze;
+		W = gaze;
 		W.negate();
 		W.normalize();
-		Vector3f V = up;
-		Vector3f U = new Vector3f();
+		V = up;
+		U = new Vector3f();
 		U.cross(V, W);
 		U.normalize();
 		V.cross(W, U);
@@ -70,4 +74,116 @@ public class Camera {
 		direction.normalize();
 		return new Ray(center, direction);
 	}
+
+	void setLens(float radius, float distance)
+	{
+		lens_radius = radius;
+		focus_dist = distance;
+	}
+
+	boolean hasLens() { return lens_radius > 0.f; }
+
+	Vector3f getEye() { return new Vector3f(center); }
+
+	Vector3f[] getBasis() { return new Vector3f[] {new Vector3f(U), new Vector3f(V), new Vector3f(W)}; }
+
+	float[] getImagePlane() { return new float[] {left, right, bottom, top}; }
+
+	Ray getCameraRay(float x, float y, float lu, float lv)
+	{
+		/* getCameraRay function with a thin lens
+		 * (lu,lv) in [0,1]^2 picks the point on the lens aperture the ray starts from;
+		 * all rays through pixel (x,y) converge on the plane in focus */
+
+		Ray ray = getCameraRay(x, y);
+		if (lens_radius <= 0.f)
+			return ray;
+
+		Vector3f focus = new Vector3f();
+		focus.scaleAdd(focus_dist / -ray.d.dot(W), ray.d, center);
+
+		// concentric mapping of the square sample to the unit disk
+		float sx = 2.f * lu - 1.f, sy = 2.f * lv - 1.f;
+		float r, theta;
+		if (sx == 0.f && sy == 0.f) {
+			r = 0.f;
+			theta = 0.f;
+		} else if (Math.abs(sx) > Math.abs(sy)) {
+			r = sx;
+			theta = (float)(Math.PI / 4) * (sy / sx);
+		} else {
+			r = sy;
+			theta = (float)(Math.PI / 2) - (float)(Math.PI / 4) * (sx / sy);
+		}
+		Vector3f origin = new Vector3f(center);
+		origin.scaleAdd(lens_radius * r * (float)Math.cos(theta), U, origin);
+		origin.scaleAdd(lens_radius * r * (float)Math.sin(theta), V, origin);
+
+		Vector3f direction = new Vector3f();
+		direction.sub(focus, origin);
+		return new Ray(origin, direction);
+	}
+
+	float pixelSpread(int height)
+	{
+		/* pixelSpread function
+		 * size of one pixel on the image plane at distance 1, i.e. the
+		 * approximate spread angle between neighboring camera rays */
+
+		return (top - bottom) / height;
+	}
+
+	boolean project(Vector3f p, Vector2f out)
+	{
+		/* project function
+		 * inverse of getCameraRay: computes the normalized image coordinate
+		 * (x,y) whose camera ray passes through point p.
+		 * returns false if p is not in front of the camera */
+
+		Vector3f d = new Vector3f();
+		d.sub(p, center);
+		float z = -d.dot(W);
+		if (z <= 0.f) return false;
+		out.x = (d.dot(U) / z - left) / (right - left);
+		out.y = (d.dot(V) / z - bottom) / (top - bottom);
+		return true;
+	}
+
+	boolean screenBounds(Vector3f[] points, int width, int height, int[] bounds)
+	{
+		/* screenBounds function
+		 * computes the inclusive pixel rectangle (xmin, ymin, xmax, ymax)
+		 * whose camera rays may pass through the convex hull of points.
+		 * if some point is behind the camera, the whole image is returned;
+		 * if all of them are, the hull cannot be seen and false is returned */
+
+		float xmin = Float.MAX_VALUE, ymin = Float.MAX_VALUE;
+		float xmax = -Float.MAX_VALUE, ymax = -Float.MAX_VALUE;
+		Vector2f s = new Vector2f();
+		int behind = 0;
+		for (int i = 0; i < points.length; i++) {
+			if (!project(points[i], s)) {
+				behind++;
+				continue;
+			}
+			xmin = Math.min(xmin, s.x * width);
+			ymin = Math.min(ymin, s.y * height);
+			xmax = Math.max(xmax, s.x * width);
+			ymax = Math.max(ymax, s.y * height);
+		}
+		if (behind == points.length) return false;
+		if (behind > 0) {
+			bounds[0] = 0;
+			bounds[1] = 0;
+			bounds[2] = width - 1;
+			bounds[3] = height - 1;
+			return true;
+		}
+		// pixel i samples x = i / width, pad by one pixel for rounding
+		bounds[0] = Math.max((int)Math.floor(xmin) - 1, 0);
+		bounds[1] = Math.max((int)Math.floor(ymin) - 1, 0);
+		bounds[2] = Math.min((int)Math.ceil(xmax) + 1, width - 1);
+		bounds[3] = Math.min((int)Math.ceil(ymax) + 1, height - 1);
+		return bounds[0] <= bounds[2] && bounds[1] <= bounds[3];
+	}
 }
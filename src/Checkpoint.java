@@ -0,0 +1,187 @@
+// Checkpoint class
+// saves an unfinished render to a memory-mapped file, so that it can be resumed after
+// the renderer is killed. the image is rendered in square tiles; when a tile is done,
+// its pixels, per-pixel sample counts and denoiser features are copied into the mapped
+// file. every few seconds the file is flushed to disk, and only after that are the
+// flushed tiles marked as done in the tile bitmap (and flushed again), so a tile is
+// never marked done before its pixels are on disk.
+//
+// file layout, all values big-endian:
+//   header: magic, version, width, height, samples per pixel, channels, tile size, frame,
+//           signature (long) of the scene the render belongs to
+//   tile bitmap: one byte per tile, 1 when the tile is done
+//   per pixel: sample count (int), then channels floats (color, then denoiser features)
+
+import javax.vecmath.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class Checkpoint {
+
+	private static final int MAGIC = 0x52544350;	// "RTCP"
+	private static final int VERSION = 1;
+	private static final int HEADER = 48;		// header size in bytes, 8 aligned
+
+	private String filename;
+	private int width, height, spp, channels, tile;
+	private long signature;
+	private long interval;				// milliseconds between flushes to disk
+	private int tiles_x, tiles_y;
+	private long pixel_offset;			// start of the per pixel data
+	private MappedByteBuffer buffer;
+	private FileChannel channel;
+	private Vector<Integer> pending = new Vector<Integer> ();	// tiles written but not yet flushed
+	private long last_flush;
+
+	// channels is the number of floats saved per pixel: 3 for the color, plus the
+	// denoiser features if the render is denoised
+	public Checkpoint(String _filename, int _width, int _height, int _spp, int _channels,
+					  int _tile, long _signature, float seconds) {
+		filename = _filename;
+		width = _width;
+		height = _height;
+		spp = _spp;
+		channels = _channels;
+		tile = _tile;
+		signature = _signature;
+		interval = (long)(seconds * 1000.f);
+		tiles_x = (width + tile - 1) / tile;
+		tiles_y = (height + tile - 1) / tile;
+		pixel_offset = (HEADER + tiles_x * tiles_y + 7) / 8 * 8;
+	}
+
+	// map the checkpoint file, creating it if needed. returns the frame an earlier run
+	// was rendering when it stopped, or -1 if there is nothing to resume from
+	public int open() {
+		long size = pixel_offset + (long)width * height * (4 + 4 * channels);
+		if (size > Integer.MAX_VALUE) {
+			System.out.println("image is too large for checkpoint file " + filename);
+			System.exit(0);
+		}
+		try {
+			channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+									   StandardOpenOption.READ, StandardOpenOption.WRITE);
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} catch (IOException e) {
+			System.out.println("error opening checkpoint file " + filename);
+			System.exit(0);
+		}
+		last_flush = System.currentTimeMillis();
+		if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION &&
+			buffer.getInt(8) == width && buffer.getInt(12) == height && buffer.getInt(16) == spp &&
+			buffer.getInt(20) == channels && buffer.getInt(24) == tile && buffer.getLong(32) == signature)
+			return buffer.getInt(28);
+		if (buffer.getInt(0) == MAGIC)
+			System.out.println("checkpoint file " + filename + " belongs to another render, starting over");
+		return -1;
+	}
+
+	// start saving frame, dropping any tiles saved earlier
+	public void startFrame(int frame) {
+		buffer.putInt(0, 0);		// invalid until the header is complete
+		buffer.force();
+		for (int t = 0; t < tiles_x * tiles_y; t++)
+			buffer.put(HEADER + t, (byte)0);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, width);
+		buffer.putInt(12, height);
+		buffer.putInt(16, spp);
+		buffer.putInt(20, channels);
+		buffer.putInt(24, tile);
+		buffer.putInt(28, frame);
+		buffer.putLong(32, signature);
+		buffer.force();
+		buffer.putInt(0, MAGIC);
+		buffer.force();
+		pending.clear();
+	}
+
+	public int getTileSize() { return tile; }
+
+	public int getTileCount() { return tiles_x * tiles_y; }
+
+	// pixel window (xmin, ymin, xmax, ymax) of tile t, in image (bottom-up) rows
+	public int[] tileWindow(int t) {
+		int x = (t % tiles_x) * tile;
+		int y = (t / tiles_x) * tile;
+		return new int[] {x, y, Math.min(x + tile, width) - 1, Math.min(y + tile, height) - 1};
+	}
+
+	public boolean isDone(int t) {
+		return buffer.get(HEADER + t) != 0;
+	}
+
+	// copy the pixels of tile t into the mapped file; the tile is marked done at the
+	// next flush. pixels that were not rendered (null) are saved with a sample count of 0
+	public void saveTile(int t, Color3f image[][], Denoiser denoiser) {
+		int w[] = tileWindow(t);
+		float features[] = new float[Math.max(channels - 3, 0)];
+		for (int j = w[1]; j <= w[3]; j++) {
+			for (int i = w[0]; i <= w[2]; i++) {
+				int pos = pixelPosition(i, j);
+				Color3f c = image[i][j];
+				buffer.putInt(pos, (c != null) ? spp : 0);
+				if (c == null)
+					continue;
+				buffer.putFloat(pos + 4, c.x);
+				buffer.putFloat(pos + 8, c.y);
+				buffer.putFloat(pos + 12, c.z);
+				if (denoiser != null) {
+					denoiser.getFeatures(j * width + i, features, 0);
+					for (int k = 0; k < features.length; k++)
+						buffer.putFloat(pos + 16 + 4 * k, features[k]);
+				}
+			}
+		}
+		pending.add(t);
+		if (System.currentTimeMillis() - last_flush >= interval)
+			flush();
+	}
+
+	// copy the pixels of a finished tile t from the mapped file into the image
+	public void restoreTile(int t, Color3f image[][], Denoiser denoiser) {
+		int w[] = tileWindow(t);
+		float features[] = new float[Math.max(channels - 3, 0)];
+		for (int j = w[1]; j <= w[3]; j++) {
+			for (int i = w[0]; i <= w[2]; i++) {
+				int pos = pixelPosition(i, j);
+				if (buffer.getInt(pos) == 0)
+					continue;
+				image[i][j] = new Color3f(buffer.getFloat(pos + 4), buffer.getFloat(pos + 8), buffer.getFloat(pos + 12));
+				if (denoiser != null) {
+					for (int k = 0; k < features.length; k++)
+						features[k] = buffer.getFloat(pos + 16 + 4 * k);
+					denoiser.setFeatures(j * width + i, features, 0);
+				}
+			}
+		}
+	}
+
+	private int pixelPosition(int i, int j) {
+		return (int)(pixel_offset + ((long)j * width + i) * (4 + 4 * channels));
+	}
+
+	// write the saved tiles to disk, then mark them as done
+	public void flush() {
+		buffer.force();
+		for (int k = 0; k < pending.size(); k++)
+			buffer.put(HEADER + pending.get(k), (byte)1);
+		buffer.force();
+		pending.clear();
+		last_flush = System.currentTimeMillis();
+	}
+
+	// remove the checkpoint file once the render is complete
+	public void delete() {
+		try {
+			channel.close();
+			buffer = null;
+			Files.deleteIfExists(Paths.get(filename));
+		} catch (IOException e) {
+			System.out.println("could not delete checkpoint file " + filename);
+		}
+	}
+}
@@ -0,0 +1,270 @@
+// ClusteredMeshWriter class
+// converts a trimesh file into a cluster file that PagedTriMesh renders from disk.
+// the mesh is never held in memory as a whole: vertices and faces are streamed into
+// memory-mapped scratch files, the faces are sorted by the Morton code of their
+// centroid (which takes 8 bytes of heap per face), and consecutive runs of
+// CLUSTER_SIZE faces are written out as clusters of nearby triangles.
+// each cluster holds its triangles and the lower levels of the acceleration
+// structure: a complete binary tree of boxes over leaves of LEAF_SIZE triangles,
+// stored in implicit order (the children of node k are 2k+1 and 2k+2).
+//
+// file layout, all values big-endian:
+//   header: magic, version, has_normals, cluster count, mesh bounds (6 floats)
+//   cluster table: per cluster offset (long), triangle count, bounds (6 floats)
+//   clusters: 6 floats per tree node, then per triangle 9 floats of positions, then
+//             per triangle 9 floats of normals if the mesh has normals
+// a cluster never straddles a SEGMENT boundary, so it can be read from one mapping.
+// the file is written under a temporary name and renamed into place once complete, so
+// an interrupted conversion never leaves a cluster file behind.
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class ClusteredMeshWriter {
+
+	public static final int MAGIC = 0x52544d43;	// "RTMC"
+	public static final int VERSION = 1;
+	public static final int HEADER = 48;		// header size in bytes
+	public static final int TABLE_ENTRY = 36;	// cluster table entry size in bytes
+	public static final int CLUSTER_SIZE = 256;	// triangles per cluster
+	public static final int LEAF_SIZE = 4;		// triangles per leaf of a cluster tree
+	public static final long SEGMENT = 1L << 30;	// bytes per mapping
+
+	// number of leaves of the tree of a cluster or cluster table with count entries,
+	// padded to a power of two
+	public static int treeLeaves(int count, int leaf_size) {
+		int leaves = (count + leaf_size - 1) / leaf_size;
+		int padded = 1;
+		while (padded < leaves)
+			padded <<= 1;
+		return padded;
+	}
+
+	// offset of the triangle positions in the data of a cluster with count triangles,
+	// after the tree nodes
+	public static int positionOffset(int count) {
+		return (2 * treeLeaves(count, LEAF_SIZE) - 1) * 6;
+	}
+
+	// returns whether cluster_name is a complete cluster file of this version
+	public static boolean isValid(String cluster_name) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(cluster_name))) {
+			return in.readInt() == MAGIC && in.readInt() == VERSION;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public static void convert(String mesh_name, String cluster_name) {
+		Scanner scanner = null;
+		try {
+			scanner = new Scanner(new BufferedInputStream(new FileInputStream(mesh_name), 1 << 16));
+		} catch (IOException e) {
+			System.out.println("error reading from file " + mesh_name);
+			System.exit(0);
+		}
+		String type = scanner.next();
+		if (scanner.next().compareToIgnoreCase("vertex")!=0) {
+			System.out.println("file " + mesh_name + " has incorrect format");
+			System.exit(0);
+		}
+		int nverts = scanner.nextInt();
+		if (scanner.next().compareToIgnoreCase("face")!=0) {
+			System.out.println("file " + mesh_name + " has incorrect format");
+			System.exit(0);
+		}
+		int nfaces = scanner.nextInt();
+		boolean has_normals = type.compareToIgnoreCase("triangle_n")==0 || type.compareToIgnoreCase("triangle_nt")==0;
+		boolean has_uvs = type.compareToIgnoreCase("triangle_t")==0 || type.compareToIgnoreCase("triangle_nt")==0;
+		int stride = has_normals ? 6 : 3;
+
+		try {
+			// vertices, and the mesh bounds used to quantize centroids
+			float bounds[] = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+			MappedArray verts = new MappedArray((long)nverts * stride);
+			for (int i = 0; i < nverts; i++) {
+				for (int k = 0; k < stride; k++) {
+					float v = scanner.nextFloat();
+					verts.putFloat((long)i * stride + k, v);
+					if (k < 3) {
+						bounds[k] = Math.min(bounds[k], v);
+						bounds[k+3] = Math.max(bounds[k+3], v);
+					}
+				}
+				if (has_uvs) {
+					// texture coordinates are not stored
+					scanner.nextFloat();
+					scanner.nextFloat();
+				}
+			}
+
+			// faces, keyed by the Morton code of their centroid with the face index below it
+			MappedArray faces = new MappedArray((long)nfaces * 3);
+			long keys[] = new long[nfaces];
+			float c[] = new float[3];
+			for (int f = 0; f < nfaces; f++) {
+				scanner.nextInt();
+				c[0] = c[1] = c[2] = 0.f;
+				for (int k = 0; k < 3; k++) {
+					int idx = scanner.nextInt();
+					faces.putInt((long)f * 3 + k, idx);
+					for (int a = 0; a < 3; a++)
+						c[a] += verts.getFloat((long)idx * stride + a) / 3.f;
+				}
+				long code = 0;
+				for (int a = 0; a < 3; a++) {
+					float extent = bounds[a+3] - bounds[a];
+					int q = (extent > 0.f) ? Math.min((int)((c[a] - bounds[a]) / extent * 1024.f), 1023) : 0;
+					code |= spread3(q) << (2 - a);
+				}
+				keys[f] = (code << 32) | f;
+			}
+			scanner.close();
+			Arrays.sort(keys);
+
+			writeClusters(cluster_name, keys, verts, faces, stride, has_normals, bounds);
+			verts.close();
+			faces.close();
+		} catch (IOException e) {
+			System.out.println("error writing to file " + cluster_name);
+			System.exit(0);
+		}
+	}
+
+	private static void writeClusters(String cluster_name, long keys[], MappedArray verts, MappedArray faces,
+									  int stride, boolean has_normals, float bounds[]) throws IOException {
+		int nfaces = keys.length;
+		int nclusters = (nfaces + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+		ByteBuffer table = ByteBuffer.allocate(nclusters * TABLE_ENTRY);
+		long data_start = HEADER + (long)nclusters * TABLE_ENTRY;
+
+		String temp_name = cluster_name + ".tmp";
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp_name), 1 << 16));
+		for (long b = 0; b < data_start; b++)
+			out.writeByte(0);		// header and table are filled in at the end
+		long pos = data_start;
+		for (int cl = 0; cl < nclusters; cl++) {
+			int first = cl * CLUSTER_SIZE;
+			int count = Math.min(CLUSTER_SIZE, nfaces - first);
+			float pos_data[] = new float[count * 9];
+			float normal_data[] = has_normals ? new float[count * 9] : null;
+			for (int t = 0; t < count; t++) {
+				int f = (int)(keys[first + t] & 0xffffffffL);
+				for (int k = 0; k < 3; k++) {
+					long v = faces.getInt((long)f * 3 + k);
+					for (int a = 0; a < 3; a++) {
+						pos_data[t*9 + k*3 + a] = verts.getFloat(v * stride + a);
+						if (has_normals)
+							normal_data[t*9 + k*3 + a] = verts.getFloat(v * stride + 3 + a);
+					}
+				}
+			}
+			float nodes[] = buildTree(pos_data, count);
+
+			long size = 4L * (pos_data.length + (has_normals ? normal_data.length : 0) + nodes.length);
+			if (pos / SEGMENT != (pos + size - 1) / SEGMENT) {
+				long next = (pos / SEGMENT + 1) * SEGMENT;
+				for (; pos < next; pos++)
+					out.writeByte(0);
+			}
+			table.putLong(pos);
+			table.putInt(count);
+			for (int k = 0; k < 6; k++)
+				table.putFloat(nodes[k]);
+			for (int k = 0; k < nodes.length; k++)
+				out.writeFloat(nodes[k]);
+			for (int k = 0; k < pos_data.length; k++)
+				out.writeFloat(pos_data[k]);
+			for (int k = 0; has_normals && k < normal_data.length; k++)
+				out.writeFloat(normal_data[k]);
+			pos += size;
+		}
+		out.close();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(has_normals ? 1 : 0);
+		header.putInt(nclusters);
+		for (int k = 0; k < 6; k++)
+			header.putFloat(bounds[k]);
+		header.rewind();
+		table.rewind();
+		RandomAccessFile file = new RandomAccessFile(temp_name, "rw");
+		FileChannel channel = file.getChannel();
+		channel.write(header, 0);
+		channel.write(table, HEADER);
+		file.close();
+		Files.move(Paths.get(temp_name), Paths.get(cluster_name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// boxes of the implicit tree over the leaves of a cluster; node 0 is the cluster bounds
+	private static float[] buildTree(float pos[], int count) {
+		int leaves = treeLeaves(count, LEAF_SIZE);
+		float nodes[] = new float[(2 * leaves - 1) * 6];
+		for (int n = 0; n < 2 * leaves - 1; n++) {
+			for (int k = 0; k < 6; k++)
+				nodes[n*6+k] = (k < 3) ? Float.MAX_VALUE : -Float.MAX_VALUE;
+		}
+		for (int t = 0; t < count; t++) {
+			int n = leaves - 1 + t / LEAF_SIZE;
+			for (int v = 0; v < 3; v++) {
+				for (int a = 0; a < 3; a++) {
+					nodes[n*6+a] = Math.min(nodes[n*6+a], pos[t*9 + v*3 + a]);
+					nodes[n*6+3+a] = Math.max(nodes[n*6+3+a], pos[t*9 + v*3 + a]);
+				}
+			}
+		}
+		for (int n = leaves - 2; n >= 0; n--) {
+			for (int a = 0; a < 3; a++) {
+				nodes[n*6+a] = Math.min(nodes[(2*n+1)*6+a], nodes[(2*n+2)*6+a]);
+				nodes[n*6+3+a] = Math.max(nodes[(2*n+1)*6+3+a], nodes[(2*n+2)*6+3+a]);
+			}
+		}
+		return nodes;
+	}
+
+	// spreads the low 10 bits of v two bits apart, for interleaving into a Morton code
+	static long spread3(long v) {
+		v &= 0x3ff;
+		v = (v | (v << 16)) & 0x030000ffL;
+		v = (v | (v << 8)) & 0x0300f00fL;
+		v = (v | (v << 4)) & 0x030c30c3L;
+		v = (v | (v << 2)) & 0x09249249L;
+		return v;
+	}
+
+	// a 4-byte element array in a temporary memory-mapped file, which may be larger than the heap
+	private static class MappedArray {
+		private File file;
+		private RandomAccessFile raf;
+		private MappedByteBuffer segments[];
+
+		MappedArray(long elements) throws IOException {
+			file = File.createTempFile("trimesh", ".tmp");
+			file.deleteOnExit();
+			raf = new RandomAccessFile(file, "rw");
+			long bytes = Math.max(elements * 4, 4);
+			segments = new MappedByteBuffer[(int)((bytes + SEGMENT - 1) / SEGMENT)];
+			for (int s = 0; s < segments.length; s++)
+				segments[s] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, s * SEGMENT, Math.min(SEGMENT, bytes - s * SEGMENT));
+		}
+
+		void putFloat(long i, float v) { segments[(int)(i * 4 / SEGMENT)].putFloat((int)(i * 4 % SEGMENT), v); }
+
+		float getFloat(long i) { return segments[(int)(i * 4 / SEGMENT)].getFloat((int)(i * 4 % SEGMENT)); }
+
+		void putInt(long i, int v) { segments[(int)(i * 4 / SEGMENT)].putInt((int)(i * 4 % SEGMENT), v); }
+
+		int getInt(long i) { return segments[(int)(i * 4 / SEGMENT)].getInt((int)(i * 4 % SEGMENT)); }
+
+		void close() throws IOException {
+			segments = null;
+			raf.close();
+			file.delete();
+		}
+	}
+}
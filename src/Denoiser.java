@@ -0,0 +1,201 @@
+// Denoiser class
+// an edge-aware a-trous wavelet filter (Dammertz et al., "Edge-Avoiding A-Trous
+// Wavelet Transform for fast Global Illumination Filtering").
+// while tracing, the renderer records the normal, depth and albedo of the first hit
+// of every camera ray into feature buffers. the filter then repeatedly blurs the
+// image with a 5x5 kernel whose taps are spread 1, 2, 4, ... pixels apart, and
+// weights each tap down where color, normal, depth or albedo differ, so that
+// noise is smoothed away without blurring across edges.
+
+import javax.vecmath.*;
+import java.util.stream.*;
+
+public class Denoiser {
+
+	private static final float KERNEL[] = {1.f/16.f, 1.f/4.f, 3.f/8.f, 1.f/4.f, 1.f/16.f};
+	public static final int FEATURES = 8;	// floats recorded per pixel, see getFeatures
+
+	private int width, height;
+	private int iterations;		// number of filter passes
+	private float normal[];		// average first-hit normal per pixel, zero for background
+	private float depth[];		// average first-hit distance per pixel, zero for background
+	private float albedo[];		// average first-hit diffuse reflectance per pixel
+	private float weight[];		// total weight of the samples recorded per pixel
+
+	// edge-stopping parameters
+	private float sigma_color = 0.15f;	// in gamma corrected color, halved every pass
+	private float sigma_normal = 0.3f;
+	private float sigma_depth = 0.02f;	// relative to the depth, per pixel of tap distance
+	private float sigma_albedo = 0.1f;
+
+	public Denoiser(int _width, int _height, int _iterations)
+	{
+		width = _width;
+		height = _height;
+		iterations = _iterations;
+		normal = new float[width * height * 3];
+		depth = new float[width * height];
+		albedo = new float[width * height * 3];
+		weight = new float[width * height];
+	}
+
+	// record the first hit of a camera ray through pixel (i,j); hit is null for background
+	// w is the weight of the ray in the pixel, e.g. 1 / samples per pixel
+	// pixels are only ever written by the thread rendering them
+	public void record(int i, int j, HitRecord hit, Color3f kd, float w)
+	{
+		int p = j * width + i;
+		weight[p] += w;
+		if (hit == null) {
+			albedo[p*3] += w;
+			albedo[p*3+1] += w;
+			albedo[p*3+2] += w;
+			return;
+		}
+		normal[p*3] += w * hit.normal.x;
+		normal[p*3+1] += w * hit.normal.y;
+		normal[p*3+2] += w * hit.normal.z;
+		depth[p] += w * hit.t;
+		albedo[p*3] += w * kd.x;
+		albedo[p*3+1] += w * kd.y;
+		albedo[p*3+2] += w * kd.z;
+	}
+
+	// copy the recorded features of pixel p (j * width + i) to out: normal, depth,
+	// albedo and weight, so an unfinished render can be saved and resumed
+	public void getFeatures(int p, float out[], int offset)
+	{
+		out[offset] = normal[p*3];
+		out[offset+1] = normal[p*3+1];
+		out[offset+2] = normal[p*3+2];
+		out[offset+3] = depth[p];
+		out[offset+4] = albedo[p*3];
+		out[offset+5] = albedo[p*3+1];
+		out[offset+6] = albedo[p*3+2];
+		out[offset+7] = weight[p];
+	}
+
+	public void setFeatures(int p, float in[], int offset)
+	{
+		normal[p*3] = in[offset];
+		normal[p*3+1] = in[offset+1];
+		normal[p*3+2] = in[offset+2];
+		depth[p] = in[offset+3];
+		albedo[p*3] = in[offset+4];
+		albedo[p*3+1] = in[offset+5];
+		albedo[p*3+2] = in[offset+6];
+		weight[p] = in[offset+7];
+	}
+
+	// filter the image in place; pixels that were not rendered (null) are left alone
+	public void filter(Color3f image[][], float exposure)
+	{
+		normalizeFeatures();
+
+		final float color[] = new float[width * height * 3];
+		final float tone[] = new float[width * height * 3];
+		float out[] = new float[width * height * 3];
+		final boolean valid[] = new boolean[width * height];
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				int p = j * width + i;
+				Color3f c = image[i][j];
+				if (c == null)
+					continue;
+				valid[p] = true;
+				color[p*3] = c.x;
+				color[p*3+1] = c.y;
+				color[p*3+2] = c.z;
+			}
+		}
+
+		float in[] = color;
+		for (int it = 0; it < iterations; it++) {
+			final int step = 1 << it;
+			final float sigma_c = sigma_color / step;
+			final float src[] = in;
+			final float dst[] = out;
+			// color differences are measured after exposure and gamma, as they are seen
+			float gamma = 1.f / 2.2f;
+			for (int k = 0; k < src.length; k++)
+				tone[k] = Math.min((float)Math.pow(Math.max(src[k] * exposure, 0.f), gamma), 1.f);
+
+			IntStream.range(0, height).parallel().forEach(j -> {
+				for (int i = 0; i < width; i++)
+					filterPixel(i, j, step, sigma_c, src, tone, valid, dst);
+			});
+			out = in;
+			in = dst;
+		}
+
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				int p = j * width + i;
+				if (valid[p])
+					image[i][j] = new Color3f(in[p*3], in[p*3+1], in[p*3+2]);
+			}
+		}
+	}
+
+	private void filterPixel(int i, int j, int step, float sigma_c, float src[], float tone[], boolean valid[], float dst[])
+	{
+		int p = j * width + i;
+		if (!valid[p])
+			return;
+		float sum_w = 0, r = 0, g = 0, b = 0;
+		for (int dy = -2; dy <= 2; dy++) {
+			int y = j + dy * step;
+			if (y < 0 || y >= height)
+				continue;
+			for (int dx = -2; dx <= 2; dx++) {
+				int x = i + dx * step;
+				if (x < 0 || x >= width)
+					continue;
+				int q = y * width + x;
+				if (!valid[q])
+					continue;
+				float w = KERNEL[dx+2] * KERNEL[dy+2];
+				w *= (float)Math.exp(-distance2(tone, p, q) / (sigma_c * sigma_c));
+				w *= (float)Math.exp(-distance2(normal, p, q) / (sigma_normal * sigma_normal));
+				w *= (float)Math.exp(-distance2(albedo, p, q) / (sigma_albedo * sigma_albedo));
+				float z = Math.max(depth[p], depth[q]);
+				if (z > 0.f)
+					w *= (float)Math.exp(-Math.abs(depth[p] - depth[q]) / (sigma_depth * z * step));
+				sum_w += w;
+				r += w * src[q*3];
+				g += w * src[q*3+1];
+				b += w * src[q*3+2];
+			}
+		}
+		dst[p*3] = r / sum_w;
+		dst[p*3+1] = g / sum_w;
+		dst[p*3+2] = b / sum_w;
+	}
+
+	private static float distance2(float a[], int p, int q)
+	{
+		float dx = a[p*3] - a[q*3];
+		float dy = a[p*3+1] - a[q*3+1];
+		float dz = a[p*3+2] - a[q*3+2];
+		return dx*dx + dy*dy + dz*dz;
+	}
+
+	// turn the accumulated features into per-pixel averages
+	private void normalizeFeatures()
+	{
+		for (int p = 0; p < width * height; p++) {
+			if (weight[p] <= 0.f)
+				continue;
+			float inv = 1.f / weight[p];
+			depth[p] *= inv;
+			for (int k = 0; k < 3; k++)
+				albedo[p*3+k] *= inv;
+			float len = (float)Math.sqrt(normal[p*3]*normal[p*3] + normal[p*3+1]*normal[p*3+1] + normal[p*3+2]*normal[p*3+2]);
+			if (len > 0.f) {
+				for (int k = 0; k < 3; k++)
+					normal[p*3+k] /= len;
+			}
+			weight[p] = 1.f;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+// HaltonSampler class
+// generates samples from the Halton sequence, using a different prime base for
+// each dimension. every pixel uses the same points, shifted by a random offset per
+// pixel and dimension (Cranley-Patterson rotation) so neighboring pixels decorrelate.
+
+public class HaltonSampler extends Sampler {
+
+	private static final int PRIMES[] = {2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53};
+
+	public HaltonSampler(int _spp) {
+		spp = _spp;
+	}
+
+	public float get1D() {
+		int d = dimension++;
+		float offset = toFloat(hash(px, py, d, 0x4a17));
+		if (d >= PRIMES.length)
+			return toFloat(hash(px, py, index, d));	// past the table, pad with random values
+		float v = radicalInverse(PRIMES[d], index) + offset;
+		return (v >= 1.f) ? v - 1.f : v;
+	}
+
+	// mirror the base b digits of i around the decimal point
+	private static float radicalInverse(int b, int i) {
+		float inv = 1.f / b;
+		float f = inv;
+		float result = 0.f;
+		while (i > 0) {
+			result += (i % b) * f;
+			i /= b;
+			f *= inv;
+		}
+		return Math.min(result, 0x1.fffffep-1f);
+	}
+}
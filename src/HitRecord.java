@@ -9,6 +9,8 @@ public class HitRecord
 	public Vector3f pos = new Vector3f(0,0,0); // hit point
 	public Vector3f normal = new Vector3f(0,0,0);	// normal at the hit point
 	public Material material;	// material at the hit point
+	public Vector2f uv = null;	// texture coordinates at the hit point, null if none
+	public float uv_scale;		// change in uv per unit distance on the surface
 
 	public void set(HitRecord r)
 	{
@@ -16,5 +18,7 @@ public class HitRecord
 		this.pos.set(r.pos);
 		this.normal.set(r.normal);
 		this.material = r.material;
+		this.uv = (r.uv != null) ? new Vector2f(r.uv) : null;
+		this.uv_scale = r.uv_scale;
 	}
 }
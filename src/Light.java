@@ -2,6 +2,7 @@
 // defines the base class Light
 
 import javax.vecmath.*;
+import java.util.*;
 
 public abstract class Light {
 
@@ -10,7 +11,71 @@ public abstract class Light {
 	// and returns the color (intensity) of the light.
 	abstract public Color3f getLight(Vector3f p, Vector3f lightPos, Vector3f lightDir);
 
+	// sampleLight is the same as getLight, but uses the sample (u,v) in [0,1)^2
+	// to pick the point on the light. lights with a single position ignore the sample.
+	public Color3f sampleLight(Vector3f p, float u, float v, Vector3f lightPos, Vector3f lightDir)
+	{
+		return getLight(p, lightPos, lightDir);
+	}
+
+	// animated lights are placed by a transform of their rest pose, as given in the
+	// scene file; each call replaces the previous transform
+	abstract public void setTransform(Matrix4f m);
+
+	public static final int AUTO_RESOLUTION = -1;	// shadow map resolution chosen by the renderer
+
+	// lights can use a shadow map of the given resolution instead of shadow rays,
+	// AUTO_RESOLUTION to let the renderer choose it, or 0 to trace shadow rays
+	public void setShadowResolution(int resolution)
+	{
+		shadow_resolution = resolution;
+		shadow_map = null;
+	}
+
+	public int getShadowResolution() { return shadow_resolution; }
+
+	// the cameras whose views make up the shadow map of the light where it is now,
+	// and their field of view. by default, lights do not support shadow maps
+	protected Camera[] shadowCameras() { return null; }
+
+	protected float shadowFovy() { return 90.f; }
+
+	// the six 90 degree views of a cube map around eye
+	protected static Camera[] cubeCameras(Vector3f eye)
+	{
+		Vector3f axes[] = {new Vector3f(1, 0, 0), new Vector3f(-1, 0, 0), new Vector3f(0, 1, 0),
+						   new Vector3f(0, -1, 0), new Vector3f(0, 0, 1), new Vector3f(0, 0, -1)};
+		Camera cameras[] = new Camera[6];
+		for (int k = 0; k < 6; k++) {
+			Vector3f at = new Vector3f(eye);
+			at.add(axes[k]);
+			Vector3f up = (k == 2 || k == 3) ? new Vector3f(0, 0, 1) : new Vector3f(0, 1, 0);
+			cameras[k] = new Camera(eye, at, up, 90.f, 1.f);
+		}
+		return cameras;
+	}
+
+	// render the shadow map of the light for the scene as it is now, resolution texels
+	// across each face
+	public void buildShadowMap(Vector<Shape> shapes, int resolution)
+	{
+		Camera cameras[] = (shadow_resolution != 0) ? shadowCameras() : null;
+		if (cameras == null)
+			return;
+		shadow_map = null;	// the map of the last frame is not needed while this one is built
+		Vector3f eye = new Vector3f();
+		getLight(new Vector3f(), eye, new Vector3f());	// lights with shadow maps have a single position
+		ShadowMap map = new ShadowMap(eye, cameras, shadowFovy(), resolution);
+		map.build(shapes);
+		shadow_map = map;
+	}
+
+	// returns the shadow map to look shadows up in, or null to trace shadow rays
+	public ShadowMap getShadowMap() { return shadow_map; }
+
 	protected Color3f intensity;
+	protected int shadow_resolution = 0;	// resolution of the shadow map, AUTO_RESOLUTION, or 0 for shadow rays
+	protected ShadowMap shadow_map = null;	// built by buildShadowMap
 }
 
 
@@ -13,6 +13,7 @@ public class Material {
 	public Color3f Kt;	// transmitive (refractive) color
 	public float phong_exp;		// phong specular exponent
 	public float ior;			// index of refraction
+	public Texture texture;		// diffuse texture modulating Kd, null if none
 
 	public Material()
 	{
@@ -0,0 +1,269 @@
+// PagedTriMesh class
+// defines a triangular mesh that is rendered from a cluster file (see ClusteredMeshWriter)
+// instead of being loaded into memory. only the cluster table and a tree of cluster
+// bounds stay resident; the triangles and the lower tree levels of a cluster are read
+// from the memory-mapped file when a ray reaches the cluster's box, and kept in a
+// size-capped, least-recently-used TileCache shared by all paged meshes.
+// an animated mesh is intersected by moving the ray into the space of the file.
+// texture coordinates are not stored.
+
+import javax.vecmath.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+public class PagedTriMesh extends Shape {
+	private String filename;
+	private TileCache cache;			// decoded clusters
+	private int cache_id;				// owner id of the clusters in the cache
+	private boolean has_normals;
+	private int nclusters;
+	private long offsets[];				// file offset of each cluster
+	private int counts[];				// triangles in each cluster
+	private float top[];				// implicit tree of cluster bounds, leaves in cluster order
+	private int top_leaves;
+	private MappedByteBuffer segments[];	// the file, one mapping per SEGMENT bytes
+	private Matrix4f transform = null;	// placement of the mesh, null if not animated
+	private Matrix4f inverse = null;
+
+	public PagedTriMesh(String _filename, TileCache _cache, Material mat) {
+		filename = _filename;
+		cache = _cache;
+		cache_id = cache.register();
+		material = mat;
+		try {
+			RandomAccessFile file = new RandomAccessFile(filename, "r");
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(ClusteredMeshWriter.HEADER);
+			channel.read(header, 0);
+			header.rewind();
+			if (header.getInt() != ClusteredMeshWriter.MAGIC || header.getInt() != ClusteredMeshWriter.VERSION) {
+				System.out.println("file " + filename + " has incorrect format");
+				System.exit(0);
+			}
+			has_normals = header.getInt() != 0;
+			nclusters = header.getInt();
+
+			ByteBuffer table = ByteBuffer.allocate(nclusters * ClusteredMeshWriter.TABLE_ENTRY);
+			channel.read(table, ClusteredMeshWriter.HEADER);
+			table.rewind();
+			offsets = new long[nclusters];
+			counts = new int[nclusters];
+			top_leaves = ClusteredMeshWriter.treeLeaves(nclusters, 1);
+			top = new float[(2 * top_leaves - 1) * 6];
+			for (int n = 0; n < 2 * top_leaves - 1; n++) {
+				for (int k = 0; k < 6; k++)
+					top[n*6+k] = (k < 3) ? Float.MAX_VALUE : -Float.MAX_VALUE;
+			}
+			for (int c = 0; c < nclusters; c++) {
+				offsets[c] = table.getLong();
+				counts[c] = table.getInt();
+				for (int k = 0; k < 6; k++)
+					top[(top_leaves - 1 + c)*6+k] = table.getFloat();
+			}
+			for (int n = top_leaves - 2; n >= 0; n--) {
+				for (int a = 0; a < 3; a++) {
+					top[n*6+a] = Math.min(top[(2*n+1)*6+a], top[(2*n+2)*6+a]);
+					top[n*6+3+a] = Math.max(top[(2*n+1)*6+3+a], top[(2*n+2)*6+3+a]);
+				}
+			}
+
+			long size = channel.size();
+			long seg = ClusteredMeshWriter.SEGMENT;
+			segments = new MappedByteBuffer[(int)((size + seg - 1) / seg)];
+			for (int s = 0; s < segments.length; s++)
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, s * seg, Math.min(seg, size - s * seg));
+			file.close();
+		} catch (IOException e) {
+			System.out.println("error reading from file " + filename);
+			System.exit(0);
+		}
+	}
+
+	// returns the tree and triangles of cluster c, reading them from the file on a cache miss
+	private float[] cluster(int c) {
+		long key = TileCache.key(cache_id, 0, c);
+		float data[] = cache.get(key);
+		if (data == null) {
+			int count = counts[c];
+			data = new float[ClusteredMeshWriter.positionOffset(count) + count * (has_normals ? 18 : 9)];
+			MappedByteBuffer segment = segments[(int)(offsets[c] / ClusteredMeshWriter.SEGMENT)];
+			int base = (int)(offsets[c] % ClusteredMeshWriter.SEGMENT);
+			for (int k = 0; k < data.length; k++)
+				data[k] = segment.getFloat(base + 4 * k);
+			cache.put(key, data);
+		}
+		return data;
+	}
+
+	public HitRecord hit(Ray ray, float tmin, float tmax) {
+		float result[] = new float[3];	// t, beta, gamma of the nearest hit
+		int found[] = new int[2];		// cluster and triangle of the nearest hit
+		float hit_data[] = traverse(localRay(ray), tmin, tmax, false, result, found);
+		if (hit_data == null)
+			return null;
+		tmax = result[0];
+		float hit_beta = result[1], hit_gamma = result[2];
+		int hit_count = counts[found[0]];
+
+		HitRecord rec = new HitRecord();
+		rec.pos = ray.pointAt(tmax);	// position of hit point
+		rec.t = tmax;					// parameter t (distance along the ray)
+		rec.material = material;		// material
+		int p = ClusteredMeshWriter.positionOffset(hit_count) + found[1] * 9;
+		if (has_normals) {
+			// interpolated the same way as Triangle does
+			int q = p + hit_count * 9;
+			rec.normal = new Vector3f(hit_data[q] + hit_beta * hit_data[q+3] + hit_gamma * hit_data[q+6],
+									  hit_data[q+1] + hit_beta * hit_data[q+4] + hit_gamma * hit_data[q+7],
+									  hit_data[q+2] + hit_beta * hit_data[q+5] + hit_gamma * hit_data[q+8]);
+		} else {
+			// the normal of the plane defined by the triangle
+			Vector3f e1 = new Vector3f(hit_data[p+3] - hit_data[p], hit_data[p+4] - hit_data[p+1], hit_data[p+5] - hit_data[p+2]);
+			Vector3f e2 = new Vector3f(hit_data[p+6] - hit_data[p], hit_data[p+7] - hit_data[p+1], hit_data[p+8] - hit_data[p+2]);
+			rec.normal = new Vector3f();
+			rec.normal.cross(e1, e2);
+		}
+		if (transform != null)
+			transform.transform(rec.normal);	// no shear, so normals turn like directions
+		rec.normal.normalize();			// normal should be normalized
+		return rec;
+	}
+
+	// stops at the first triangle found, so a shadow ray only pages in the clusters it
+	// passes through until then
+	public boolean shadowHit(Ray ray, float tmin, float tmax) {
+		return traverse(localRay(ray), tmin, tmax, true, new float[3], new int[2]) != null;
+	}
+
+	// the ray in the space of the file; the direction is not normalized, so t is the
+	// same along both rays
+	private Ray localRay(Ray ray) {
+		if (transform == null)
+			return ray;
+		Ray local = new Ray();
+		Point3f o = new Point3f(ray.o);
+		inverse.transform(o);
+		local.o = new Vector3f(o);
+		local.d = new Vector3f(ray.d);
+		inverse.transform(local.d);
+		return local;
+	}
+
+	// walk the cluster bounds and the trees of the clusters the ray reaches, and find
+	// the nearest triangle the ray hits within [tmin, tmax], or with any_hit the first
+	// one found. sets result to its t, beta and gamma and found to its cluster and
+	// triangle; returns the data of its cluster, or null if the ray hits no triangle
+	private float[] traverse(Ray local, float tmin, float tmax, boolean any_hit, float result[], int found[]) {
+		float inv[] = {1.f / local.d.x, 1.f / local.d.y, 1.f / local.d.z};
+		float hit_data[] = null;
+		float bary[] = new float[2];
+		int stack[] = new int[64];
+		int sp = 0;
+		stack[sp++] = 0;
+		while (sp > 0) {
+			int node = stack[--sp];
+			if (BVH.boxEntry(top, node, local, inv, tmin, tmax) == Float.MAX_VALUE)
+				continue;
+			if (node < top_leaves - 1) {
+				stack[sp++] = 2 * node + 2;
+				stack[sp++] = 2 * node + 1;
+				continue;
+			}
+
+			// a cluster: its tree nodes come first in its data
+			int c = node - (top_leaves - 1);
+			float data[] = cluster(c);
+			int count = counts[c];
+			int leaves = ClusteredMeshWriter.treeLeaves(count, ClusteredMeshWriter.LEAF_SIZE);
+			int positions = ClusteredMeshWriter.positionOffset(count);
+			int csp = sp;
+			stack[csp++] = 0;
+			while (csp > sp) {
+				int n = stack[--csp];
+				if (BVH.boxEntry(data, n, local, inv, tmin, tmax) == Float.MAX_VALUE)
+					continue;
+				if (n < leaves - 1) {
+					stack[csp++] = 2 * n + 2;
+					stack[csp++] = 2 * n + 1;
+					continue;
+				}
+				int first = (n - (leaves - 1)) * ClusteredMeshWriter.LEAF_SIZE;
+				int last = Math.min(first + ClusteredMeshWriter.LEAF_SIZE, count);
+				for (int t = first; t < last; t++) {
+					float dist = Triangle.intersect(data, positions + t * 9, local, tmin, tmax, bary);
+					if (dist == Float.MAX_VALUE) continue;
+					tmax = dist;
+					hit_data = data;
+					result[0] = dist;
+					result[1] = bary[0];
+					result[2] = bary[1];
+					found[0] = c;
+					found[1] = t;
+					if (any_hit)
+						return hit_data;
+				}
+			}
+		}
+		return hit_data;
+	}
+
+	// scan convert the triangles of every cluster whose box may be seen in the window
+	// being rasterized, paging clusters in through the cache like rays do
+	public void rasterize(Rasterizer rasterizer, int id) {
+		Vector3f p[] = {new Vector3f(), new Vector3f(), new Vector3f()};
+		Point3f point = new Point3f();
+		for (int c = 0; c < nclusters; c++) {
+			if (!rasterizer.inWindow(corners(top_leaves - 1 + c)))
+				continue;
+			float data[] = cluster(c);
+			int positions = ClusteredMeshWriter.positionOffset(counts[c]);
+			for (int t = 0; t < counts[c]; t++) {
+				for (int k = 0; k < 3; k++) {
+					int q = positions + t * 9 + k * 3;
+					p[k].set(data[q], data[q+1], data[q+2]);
+					if (transform != null) {
+						point.set(p[k]);
+						transform.transform(point);
+						p[k].set(point);
+					}
+				}
+				rasterizer.drawTriangle(p[0], p[1], p[2], id);
+			}
+		}
+	}
+
+	// corners of the bounding box of the placed mesh
+	private Vector3f[] corners() {
+		return corners(0);
+	}
+
+	// corners of the box of node n of the cluster bounds, placed like the mesh
+	private Vector3f[] corners(int n) {
+		Vector3f[] corners = new Vector3f[8];
+		for (int i = 0; i < 8; i++) {
+			Point3f corner = new Point3f(top[n*6 + (((i & 1) == 0) ? 0 : 3)], top[n*6 + (((i & 2) == 0) ? 1 : 4)], top[n*6 + (((i & 4) == 0) ? 2 : 5)]);
+			if (transform != null)
+				transform.transform(corner);
+			corners[i] = new Vector3f(corner);
+		}
+		return corners;
+	}
+
+	public boolean bounds(Vector3f bmin, Vector3f bmax) {
+		Vector3f[] corners = corners();
+		bmin.set(corners[0]);
+		bmax.set(corners[0]);
+		for (int i = 1; i < 8; i++) {
+			bmin.set(Math.min(bmin.x, corners[i].x), Math.min(bmin.y, corners[i].y), Math.min(bmin.z, corners[i].z));
+			bmax.set(Math.max(bmax.x, corners[i].x), Math.max(bmax.y, corners[i].y), Math.max(bmax.z, corners[i].z));
+		}
+		return true;
+	}
+
+	public void setTransform(Matrix4f m) {
+		transform = new Matrix4f(m);
+		inverse = new Matrix4f(m);
+		inverse.invert();
+	}
+}
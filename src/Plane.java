@@ -6,12 +6,14 @@ import javax.vecmath.*;
 public class Plane extends Shape {
 	private Vector3f P0;	// a point on the plane
 	private Vector3f N ; // plane normal
+	private Vector3f rest_P0 = null, rest_N;	// point and normal as given, kept once the plane is animated
 
 	public Plane() {
 	}
 	public Plane(Vector3f p0, Vector3f n, Material mat) {
 		P0 = new Vector3f(p0);
 		N = new Vector3f(n);
+		N.normalize();
 		material = mat;
 	}
 	public HitRecord hit(Ray ray, float tmin, float tmax) {
@@ -30,10 +32,26 @@ public class Plane extends Shape {
 		rec.pos = ray.pointAt(t);		// position of hit point
 		rec.t = t;						// parameter t (distance along the ray)
 		rec.material = material;		// material
-		rec.normal = N;					// normal at the hit point
-		rec.normal.normalize();			// normal should be normalized
+		rec.normal = new Vector3f(N);	// normal at the hit point, normalized in the constructor
 		
 		return rec;
 	}
 
+	public void rasterize(Rasterizer rasterizer, int id) {
+		rasterizer.drawPlane(P0, N, id);
+	}
+
+	public void setTransform(Matrix4f m) {
+		if (rest_P0 == null) {
+			rest_P0 = new Vector3f(P0);
+			rest_N = new Vector3f(N);
+		}
+		Point3f p = new Point3f(rest_P0);
+		m.transform(p);
+		Vector3f n = new Vector3f(rest_N);
+		m.transform(n);			// the transform has no shear, so normals turn like directions
+		n.normalize();
+		P0 = new Vector3f(p);
+		N = n;
+	}
 }
@@ -25,7 +25,23 @@ public class PointLight extends Light
 		return lightIntens;
 	}
 
+	public void setTransform(Matrix4f m)
+	{
+		if (rest_position == null)
+			rest_position = new Vector3f(position);
+		Point3f p = new Point3f(rest_position);
+		m.transform(p);
+		position = new Vector3f(p);
+	}
+
+	// a cube map: one 90 degree view along each axis
+	protected Camera[] shadowCameras()
+	{
+		return cubeCameras(position);
+	}
+
 	private Vector3f position;	// position of the point light
+	private Vector3f rest_position = null;	// position as given, kept once the light is animated
 }
 
 
@@ -0,0 +1,329 @@
+// QuantizedTriMesh class
+// defines a compressed triangular mesh shape
+// positions are quantized to 16 bits per component within the mesh bounding box,
+// normals are octahedral encoded into 32 bits, and face indices are stored
+// in 16 bits when the vertex count allows. everything is decoded on the fly
+// in the intersection kernel, so no Vector3f is kept per vertex or per face.
+// texture coordinates are not stored.
+// faces are sorted along a Morton curve and kept in a complete binary tree of boxes
+// over leaves of LEAF_SIZE faces, stored in implicit order (the children of node k
+// are 2k+1 and 2k+2), with the boxes quantized like the positions.
+// an animated mesh keeps its stored positions, and is intersected by moving the ray
+// into the space of the stored mesh instead.
+
+import javax.vecmath.*;
+import java.util.*;
+
+public class QuantizedTriMesh extends Shape {
+	private Vector3f min;			// bounding box minimum
+	private Vector3f scale;			// bounding box extent divided by the quantization range
+	private short[] positions;		// quantized positions, 3 per vertex
+	private int[] normals = null;	// octahedral encoded normals, 1 per vertex, null if none
+	private short[] faces16 = null;	// face indices when the vertex count fits in 16 bits
+	private int[] faces32 = null;	// face indices otherwise
+	private int nfaces;
+	private short[] nodes;			// quantized box (min x,y,z, max x,y,z) of each tree node
+	private int leaves;				// leaves of the tree, padded to a power of two
+	private Matrix4f transform = null;	// placement of the stored mesh, null if not animated
+	private Matrix4f inverse = null;
+
+	private static final float QMAX = 65535.f;
+	private static final int LEAF_SIZE = 4;		// faces per leaf of the tree
+
+	public QuantizedTriMesh(TriMesh mesh, Material mat) {
+		material = mat;
+		min = new Vector3f();
+		Vector3f max = new Vector3f();
+		mesh.bounds(min, max);
+		scale = new Vector3f(max);
+		scale.sub(min);
+		scale.scale(1.f / QMAX);
+
+		int i;
+		int nverts = mesh.verts.length;
+		positions = new short[nverts*3];
+		for (i=0; i<nverts; i++) {
+			positions[i*3+0] = quantize(mesh.verts[i].x, min.x, scale.x);
+			positions[i*3+1] = quantize(mesh.verts[i].y, min.y, scale.y);
+			positions[i*3+2] = quantize(mesh.verts[i].z, min.z, scale.z);
+		}
+		if (mesh.normals != null) {
+			normals = new int[nverts];
+			for (i=0; i<nverts; i++) {
+				normals[i] = encodeNormal(mesh.normals[i]);
+			}
+		}
+
+		nfaces = mesh.faces.length/3;
+		if (nverts <= 65536) {
+			faces16 = new short[mesh.faces.length];
+			for (i=0; i<mesh.faces.length; i++) {
+				faces16[i] = (short)mesh.faces[i];
+			}
+		} else {
+			faces32 = mesh.faces.clone();
+		}
+		buildTree();
+	}
+
+	// sort the faces by the Morton code of their quantized centroid, and build the
+	// boxes of the tree over them
+	private void buildTree() {
+		long keys[] = new long[nfaces];
+		for (int f = 0; f < nfaces; f++) {
+			long code = 0;
+			for (int a = 0; a < 3; a++) {
+				int c = ((positions[index(f*3)*3+a] & 0xffff) + (positions[index(f*3+1)*3+a] & 0xffff) +
+						 (positions[index(f*3+2)*3+a] & 0xffff)) / 3;
+				code |= ClusteredMeshWriter.spread3(c >> 6) << (2 - a);
+			}
+			keys[f] = (code << 32) | f;
+		}
+		Arrays.sort(keys);
+		int sorted[] = new int[nfaces * 3];
+		for (int f = 0; f < nfaces; f++) {
+			int g = (int)(keys[f] & 0xffffffffL);
+			for (int k = 0; k < 3; k++)
+				sorted[f*3+k] = index(g*3+k);
+		}
+		for (int i = 0; i < sorted.length; i++) {
+			if (faces16 != null)
+				faces16[i] = (short)sorted[i];
+			else
+				faces32[i] = sorted[i];
+		}
+
+		leaves = ClusteredMeshWriter.treeLeaves(nfaces, LEAF_SIZE);
+		int box[] = new int[(2 * leaves - 1) * 6];
+		for (int n = 0; n < 2 * leaves - 1; n++) {
+			for (int k = 0; k < 6; k++)
+				box[n*6+k] = (k < 3) ? 65535 : 0;	// empty until faces are added
+		}
+		for (int f = 0; f < nfaces; f++) {
+			int n = leaves - 1 + f / LEAF_SIZE;
+			for (int k = 0; k < 3; k++) {
+				int v = index(f*3+k);
+				for (int a = 0; a < 3; a++) {
+					box[n*6+a] = Math.min(box[n*6+a], positions[v*3+a] & 0xffff);
+					box[n*6+3+a] = Math.max(box[n*6+3+a], positions[v*3+a] & 0xffff);
+				}
+			}
+		}
+		for (int n = leaves - 2; n >= 0; n--) {
+			for (int a = 0; a < 3; a++) {
+				box[n*6+a] = Math.min(box[(2*n+1)*6+a], box[(2*n+2)*6+a]);
+				box[n*6+3+a] = Math.max(box[(2*n+1)*6+3+a], box[(2*n+2)*6+3+a]);
+			}
+		}
+		nodes = new short[box.length];
+		for (int i = 0; i < box.length; i++)
+			nodes[i] = (short)box[i];
+	}
+
+	// decode the box of node n into box[0..5]; an empty box has min > max
+	private void decodeBox(int n, float box[]) {
+		float lo[] = {min.x, min.y, min.z, min.x, min.y, min.z};
+		float s[] = {scale.x, scale.y, scale.z, scale.x, scale.y, scale.z};
+		for (int k = 0; k < 6; k++)
+			box[k] = lo[k] + (nodes[n*6+k] & 0xffff) * s[k];
+	}
+
+	private static short quantize(float v, float lo, float s) {
+		if (s == 0.f) return 0;
+		return (short)Math.round(Math.min(Math.max((v - lo) / s, 0.f), QMAX));
+	}
+
+	// octahedral encoding: project the normal onto the octahedron |x|+|y|+|z| = 1,
+	// fold the lower hemisphere over the upper one, and store x,y as 16 bits each
+	static int encodeNormal(Vector3f n) {
+		float l1 = Math.abs(n.x) + Math.abs(n.y) + Math.abs(n.z);
+		if (l1 == 0.f) return 0;
+		float x = n.x / l1;
+		float y = n.y / l1;
+		if (n.z < 0.f) {
+			float fx = (1.f - Math.abs(y)) * (x >= 0.f ? 1.f : -1.f);
+			float fy = (1.f - Math.abs(x)) * (y >= 0.f ? 1.f : -1.f);
+			x = fx;
+			y = fy;
+		}
+		int qx = Math.round((x * 0.5f + 0.5f) * QMAX);
+		int qy = Math.round((y * 0.5f + 0.5f) * QMAX);
+		return (qx << 16) | qy;
+	}
+
+	private static void decodeNormal(int e, Vector3f n) {
+		float x = ((e >>> 16) / QMAX) * 2.f - 1.f;
+		float y = ((e & 0xffff) / QMAX) * 2.f - 1.f;
+		float z = 1.f - Math.abs(x) - Math.abs(y);
+		if (z < 0.f) {
+			float fx = (1.f - Math.abs(y)) * (x >= 0.f ? 1.f : -1.f);
+			float fy = (1.f - Math.abs(x)) * (y >= 0.f ? 1.f : -1.f);
+			x = fx;
+			y = fy;
+		}
+		n.set(x, y, z);
+		n.normalize();
+	}
+
+	private int index(int i) {
+		return (faces16 != null) ? (faces16[i] & 0xffff) : faces32[i];
+	}
+
+	private void decodePosition(int v, Vector3f p) {
+		p.x = min.x + (positions[v*3+0] & 0xffff) * scale.x;
+		p.y = min.y + (positions[v*3+1] & 0xffff) * scale.y;
+		p.z = min.z + (positions[v*3+2] & 0xffff) * scale.z;
+	}
+
+	private void decodePosition(int v, float p[], int offset) {
+		p[offset+0] = min.x + (positions[v*3+0] & 0xffff) * scale.x;
+		p[offset+1] = min.y + (positions[v*3+1] & 0xffff) * scale.y;
+		p[offset+2] = min.z + (positions[v*3+2] & 0xffff) * scale.z;
+	}
+
+	public HitRecord hit(Ray ray, float tmin, float tmax) {
+		float result[] = new float[3];	// t, beta, gamma of the nearest hit
+		int hit_face = traverse(localRay(ray), tmin, tmax, false, result);
+		if (hit_face < 0)
+			return null;
+		tmax = result[0];
+		float hit_beta = result[1], hit_gamma = result[2];
+
+		HitRecord rec = new HitRecord();
+		rec.pos = ray.pointAt(tmax);	// position of hit point
+		rec.t = tmax;					// parameter t (distance along the ray)
+		rec.material = material;		// material
+		if (normals != null) {
+			// interpolated the same way as Triangle does
+			Vector3f n0 = new Vector3f();
+			Vector3f n1 = new Vector3f();
+			Vector3f n2 = new Vector3f();
+			decodeNormal(normals[index(hit_face*3+0)], n0);
+			decodeNormal(normals[index(hit_face*3+1)], n1);
+			decodeNormal(normals[index(hit_face*3+2)], n2);
+			rec.normal = new Vector3f(n0.x + (hit_beta * n1.x) + (hit_gamma * n2.x), n0.y + (hit_beta * n1.y) + (hit_gamma * n2.y), n0.z + (hit_beta * n1.z) + (hit_gamma * n2.z));
+		} else {
+			// the normal of the plane defined by the triangle
+			Vector3f p0 = new Vector3f();
+			Vector3f p1 = new Vector3f();
+			Vector3f p2 = new Vector3f();
+			decodePosition(index(hit_face*3+0), p0);
+			decodePosition(index(hit_face*3+1), p1);
+			decodePosition(index(hit_face*3+2), p2);
+			p1.sub(p0);
+			p2.sub(p0);
+			rec.normal = new Vector3f();
+			rec.normal.cross(p1, p2);
+		}
+		if (transform != null)
+			transform.transform(rec.normal);	// no shear, so normals turn like directions
+		rec.normal.normalize();			// normal should be normalized
+		return rec;
+	}
+
+	public boolean shadowHit(Ray ray, float tmin, float tmax) {
+		return traverse(localRay(ray), tmin, tmax, true, new float[3]) >= 0;
+	}
+
+	// the ray in the space of the stored mesh; the direction is not normalized, so t
+	// is the same along both rays
+	private Ray localRay(Ray ray) {
+		if (transform == null)
+			return ray;
+		Ray local = new Ray();
+		Point3f o = new Point3f(ray.o);
+		inverse.transform(o);
+		local.o = new Vector3f(o);
+		local.d = new Vector3f(ray.d);
+		inverse.transform(local.d);
+		return local;
+	}
+
+	// walk the tree and return the nearest face the ray hits within [tmin, tmax], or
+	// with any_hit the first one found, setting result to its t, beta and gamma;
+	// returns -1 if the ray hits no face
+	private int traverse(Ray ray, float tmin, float tmax, boolean any_hit, float result[]) {
+		float inv[] = {1.f / ray.d.x, 1.f / ray.d.y, 1.f / ray.d.z};
+		float box[] = new float[6];
+		float corners[] = new float[9];
+		float bary[] = new float[2];
+		int hit_face = -1;
+		int stack[] = new int[64];
+		int sp = 0;
+		stack[sp++] = 0;
+		while (sp > 0) {
+			int n = stack[--sp];
+			decodeBox(n, box);
+			if (BVH.boxEntry(box, 0, ray, inv, tmin, tmax) == Float.MAX_VALUE)
+				continue;
+			if (n < leaves - 1) {
+				stack[sp++] = 2 * n + 2;
+				stack[sp++] = 2 * n + 1;
+				continue;
+			}
+			int first = (n - (leaves - 1)) * LEAF_SIZE;
+			int last = Math.min(first + LEAF_SIZE, nfaces);
+			for (int f = first; f < last; f++) {
+				for (int k = 0; k < 3; k++)
+					decodePosition(index(f*3+k), corners, k*3);
+				float t = Triangle.intersect(corners, 0, ray, tmin, tmax, bary);
+				if (t == Float.MAX_VALUE) continue;
+				tmax = t;
+				hit_face = f;
+				result[0] = t;
+				result[1] = bary[0];
+				result[2] = bary[1];
+				if (any_hit)
+					return hit_face;
+			}
+		}
+		return hit_face;
+	}
+
+	// corners of the bounding box of the placed mesh
+	private Vector3f[] corners() {
+		Vector3f[] corners = new Vector3f[8];
+		for (int i = 0; i < 8; i++) {
+			Point3f corner = new Point3f(min.x + ((i & 1) == 0 ? 0 : scale.x * QMAX),
+										 min.y + ((i & 2) == 0 ? 0 : scale.y * QMAX),
+										 min.z + ((i & 4) == 0 ? 0 : scale.z * QMAX));
+			if (transform != null)
+				transform.transform(corner);
+			corners[i] = new Vector3f(corner);
+		}
+		return corners;
+	}
+
+	public void rasterize(Rasterizer rasterizer, int id) {
+		Vector3f p[] = {new Vector3f(), new Vector3f(), new Vector3f()};
+		Point3f point = new Point3f();
+		for (int f = 0; f < nfaces; f++) {
+			for (int k = 0; k < 3; k++) {
+				decodePosition(index(f*3+k), p[k]);
+				if (transform != null) {
+					point.set(p[k]);
+					transform.transform(point);
+					p[k].set(point);
+				}
+			}
+			rasterizer.drawTriangle(p[0], p[1], p[2], id);
+		}
+	}
+
+	public boolean bounds(Vector3f bmin, Vector3f bmax) {
+		Vector3f[] corners = corners();
+		bmin.set(corners[0]);
+		bmax.set(corners[0]);
+		for (int i = 1; i < 8; i++) {
+			bmin.set(Math.min(bmin.x, corners[i].x), Math.min(bmin.y, corners[i].y), Math.min(bmin.z, corners[i].z));
+			bmax.set(Math.max(bmax.x, corners[i].x), Math.max(bmax.y, corners[i].y), Math.max(bmax.z, corners[i].z));
+		}
+		return true;
+	}
+
+	public void setTransform(Matrix4f m) {
+		transform = new Matrix4f(m);
+		inverse = new Matrix4f(m);
+		inverse.invert();
+	}
+}
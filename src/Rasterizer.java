@@ -0,0 +1,249 @@
+// Rasterizer class
+// computes primary visibility by rasterizing every shape into a visibility buffer,
+// which stores the nearest hit distance (depth) and the index of the nearest shape
+// for each pixel. shapes are projected with the same camera used for ray tracing,
+// and pixel (i,j) is sampled where the camera ray through (i/width, j/height) passes,
+// so the buffer matches what checkIntersection would find for the camera rays.
+// each shape draws itself: triangles are clipped to the near plane and scan converted
+// with edge functions, interpolating depth; spheres are drawn over their projected
+// bounding quads with an exact depth per pixel, and planes over the whole image;
+// paged meshes draw the triangles of the clusters whose boxes are in view.
+// shapes that cannot be drawn this way cast a camera ray per pixel of their screen
+// bounds. a depth-only buffer (for shadow maps) does not keep shape indices.
+
+import javax.vecmath.*;
+import java.util.*;
+
+public class Rasterizer {
+
+	private int width, height;	// buffer width, height
+	private float depth[];		// distance in front of the eye of the nearest hit for each pixel
+	private int shape_id[];		// index of the nearest shape for each pixel, -1 if none; null if depth only
+
+	// camera of the current pass
+	private Camera camera;
+	private Vector3f eye, U, V, W;
+	private float plane_x[];	// image plane coordinate at distance 1 of each column
+	private float plane_y[];	// and of each row
+	private int window[];		// pixels (xmin, ymin, xmax, ymax) being rasterized
+
+	private static final float NEAR = 0.0001f;	// tmin of camera rays
+
+	public Rasterizer(int _width, int _height)
+	{
+		this(_width, _height, true);
+	}
+
+	public Rasterizer(int _width, int _height, boolean ids)
+	{
+		width = _width;
+		height = _height;
+		depth = new float[width * height];
+		shape_id = ids ? new int[width * height] : null;
+	}
+
+	public void rasterize(Vector<Shape> shapes, Camera camera)
+	{
+		rasterize(shapes, camera, new int[] {0, 0, width - 1, height - 1});
+	}
+
+	// rasterize only the pixels inside window (xmin, ymin, xmax, ymax)
+	public void rasterize(Vector<Shape> shapes, Camera _camera, int[] _window)
+	{
+		Arrays.fill(depth, Float.MAX_VALUE);
+		if (shape_id != null)
+			Arrays.fill(shape_id, -1);
+
+		camera = _camera;
+		window = _window;
+		eye = camera.getEye();
+		Vector3f basis[] = camera.getBasis();
+		U = basis[0];
+		V = basis[1];
+		W = basis[2];
+		float extents[] = camera.getImagePlane();	// left, right, bottom, top
+		plane_x = new float[width];
+		plane_y = new float[height];
+		for (int i = 0; i < width; i++)
+			plane_x[i] = extents[0] + (float)i / (float)width * (extents[1] - extents[0]);
+		for (int j = 0; j < height; j++)
+			plane_y[j] = extents[2] + (float)j / (float)height * (extents[3] - extents[2]);
+
+		for (int k = 0; k < shapes.size(); k++)
+			shapes.get(k).rasterize(this, k);
+	}
+
+	// store a hit at distance z in front of the eye in pixel (i,j) if it is the nearest
+	// one so far. along one camera ray, z is the hit distance divided by the length of
+	// (x, y, 1), so comparing z orders hits the same way
+	private void write(int i, int j, float z, int id)
+	{
+		int index = j*width+i;
+		if (z >= NEAR && z < depth[index]) {
+			depth[index] = z;
+			if (shape_id != null)
+				shape_id[index] = id;
+		}
+	}
+
+	// coordinates of p in the camera basis, with z the distance in front of the eye
+	private float[] toView(Vector3f p)
+	{
+		float x = p.x - eye.x, y = p.y - eye.y, z = p.z - eye.z;
+		return new float[] {x * U.x + y * U.y + z * U.z,
+							x * V.x + y * V.y + z * V.z,
+							-(x * W.x + y * W.y + z * W.z)};
+	}
+
+	public void drawTriangle(Vector3f p0, Vector3f p1, Vector3f p2, int id)
+	{
+		// clip against the near plane: the polygon gains at most one vertex
+		float in[][] = {toView(p0), toView(p1), toView(p2)};
+		float out[][] = new float[4][];
+		int n = 0;
+		for (int k = 0; k < 3; k++) {
+			float a[] = in[k], b[] = in[(k + 1) % 3];
+			if (a[2] >= NEAR)
+				out[n++] = a;
+			if ((a[2] >= NEAR) != (b[2] >= NEAR)) {
+				float s = (NEAR - a[2]) / (b[2] - a[2]);
+				out[n++] = new float[] {a[0] + s * (b[0] - a[0]), a[1] + s * (b[1] - a[1]), NEAR};
+			}
+		}
+		for (int k = 1; k + 1 < n; k++)
+			scanTriangle(out[0], out[k], out[k + 1], id);
+	}
+
+	// scan convert a triangle given in view coordinates, all in front of the eye
+	private void scanTriangle(float a[], float b[], float c[], int id)
+	{
+		// projected positions in pixels; pixel i is sampled at x = i
+		float extents[] = camera.getImagePlane();
+		float sx = width / (extents[1] - extents[0]), sy = height / (extents[3] - extents[2]);
+		float ax = (a[0] / a[2] - extents[0]) * sx, ay = (a[1] / a[2] - extents[2]) * sy;
+		float bx = (b[0] / b[2] - extents[0]) * sx, by = (b[1] / b[2] - extents[2]) * sy;
+		float cx = (c[0] / c[2] - extents[0]) * sx, cy = (c[1] / c[2] - extents[2]) * sy;
+		float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+		if (area == 0.f)
+			return;
+
+		int xmin = Math.max((int)Math.ceil(Math.min(ax, Math.min(bx, cx))), window[0]);
+		int xmax = Math.min((int)Math.floor(Math.max(ax, Math.max(bx, cx))), window[2]);
+		int ymin = Math.max((int)Math.ceil(Math.min(ay, Math.min(by, cy))), window[1]);
+		int ymax = Math.min((int)Math.floor(Math.max(ay, Math.max(by, cy))), window[3]);
+		if (xmin > xmax || ymin > ymax)
+			return;
+
+		// edge functions, normalized so that they are the barycentric coordinates of the
+		// pixel; a pixel is covered when all three are at least 0. the small tolerance
+		// keeps shared edges from cracking: a pixel covered only by rounding is traced
+		// when it is shaded, since its exact hit test misses
+		float e0x = (by - cy) / area, e0y = (cx - bx) / area, e0c = (bx * cy - cx * by) / area;
+		float e1x = (cy - ay) / area, e1y = (ax - cx) / area, e1c = (cx * ay - ax * cy) / area;
+		float e2x = (ay - by) / area, e2y = (bx - ax) / area, e2c = (ax * by - bx * ay) / area;
+		final float eps = -1e-5f;
+		// 1/z is linear in screen space
+		float iza = 1.f / a[2], izb = 1.f / b[2], izc = 1.f / c[2];
+		for (int j = ymin; j <= ymax; j++) {
+			float w0 = e0x * xmin + e0y * j + e0c;
+			float w1 = e1x * xmin + e1y * j + e1c;
+			float w2 = e2x * xmin + e2y * j + e2c;
+			for (int i = xmin; i <= xmax; i++, w0 += e0x, w1 += e1x, w2 += e2x) {
+				if (w0 < eps || w1 < eps || w2 < eps)
+					continue;
+				write(i, j, 1.f / (w0 * iza + w1 * izb + w2 * izc), id);
+			}
+		}
+	}
+
+	// draw a sphere over the pixels of its projected bounding box, with the exact
+	// distance at which each camera ray enters it (or leaves it, from inside)
+	public void drawSphere(Shape sphere, Vector3f center, float radius, int id)
+	{
+		int bounds[] = new int[4];
+		if (!sphere.screenBounds(camera, width, height, bounds))
+			return;
+		float ox = eye.x - center.x, oy = eye.y - center.y, oz = eye.z - center.z;
+		// the ray direction is normalized, so a = 1; coefficients are linear in the
+		// image plane coordinates, up to the length of the direction
+		float bu = ox * U.x + oy * U.y + oz * U.z;
+		float bv = ox * V.x + oy * V.y + oz * V.z;
+		float bw = ox * W.x + oy * W.y + oz * W.z;
+		float c = ox * ox + oy * oy + oz * oz - radius * radius;
+		for (int j = Math.max(bounds[1], window[1]); j <= Math.min(bounds[3], window[3]); j++) {
+			for (int i = Math.max(bounds[0], window[0]); i <= Math.min(bounds[2], window[2]); i++) {
+				float len = (float)Math.sqrt(plane_x[i] * plane_x[i] + plane_y[j] * plane_y[j] + 1.f);
+				float b = 2.f * (plane_x[i] * bu + plane_y[j] * bv - bw) / len;
+				float discriminant = b * b - 4.f * c;
+				if (discriminant <= 0.f)
+					continue;
+				float t = (-b - (float)Math.sqrt(discriminant)) / 2.f;
+				if (t < NEAR)
+					t = (-b + (float)Math.sqrt(discriminant)) / 2.f;
+				if (t >= NEAR)
+					write(i, j, t / len, id);
+			}
+		}
+	}
+
+	// draw an infinite plane over every pixel whose camera ray meets it
+	public void drawPlane(Vector3f point, Vector3f normal, int id)
+	{
+		float nu = normal.dot(U), nv = normal.dot(V), nw = normal.dot(W);
+		Vector3f d = new Vector3f();
+		d.sub(point, eye);
+		float num = d.dot(normal);
+		for (int j = window[1]; j <= window[3]; j++) {
+			for (int i = window[0]; i <= window[2]; i++) {
+				// the direction (x, y, -1) in the camera basis, before normalization
+				float denom = plane_x[i] * nu + plane_y[j] * nv - nw;
+				if (denom == 0.f)
+					continue;
+				write(i, j, num / denom, id);
+			}
+		}
+	}
+
+	// cast a camera ray through every pixel of the screen bounds of shape, for shapes
+	// that have no scan conversion of their own
+	public void castRays(Shape shape, int id)
+	{
+		int bounds[] = new int[4];
+		if (!shape.screenBounds(camera, width, height, bounds))
+			return;
+		Ray ray = new Ray();
+		ray.o.set(eye);
+		for (int j = Math.max(bounds[1], window[1]); j <= Math.min(bounds[3], window[3]); j++) {
+			for (int i = Math.max(bounds[0], window[0]); i <= Math.min(bounds[2], window[2]); i++) {
+				ray.d.set(plane_x[i] * U.x + plane_y[j] * V.x - W.x,
+						  plane_x[i] * U.y + plane_y[j] * V.y - W.y,
+						  plane_x[i] * U.z + plane_y[j] * V.z - W.z);
+				float len = ray.d.length();
+				ray.d.scale(1.f / len);
+				HitRecord hit = shape.hit(ray, NEAR, getDepth(i, j));
+				if (hit != null)
+					write(i, j, hit.t / len, id);
+			}
+		}
+	}
+
+	// returns whether a box with the given corners may cover pixels of the window being
+	// rasterized, so shapes made of many parts can skip the parts that cannot be seen
+	public boolean inWindow(Vector3f corners[])
+	{
+		int bounds[] = new int[4];
+		return camera.screenBounds(corners, width, height, bounds) && bounds[0] <= window[2] && bounds[2] >= window[0] &&
+			   bounds[1] <= window[3] && bounds[3] >= window[1];
+	}
+
+	// returns the index of the nearest shape at pixel (i,j), or -1 for background
+	public int getShapeId(int i, int j) { return shape_id[j*width+i]; }
+
+	// returns the nearest hit distance at pixel (i,j)
+	public float getDepth(int i, int j) {
+		float z = depth[j*width+i];
+		if (z == Float.MAX_VALUE)
+			return z;
+		return z * (float)Math.sqrt(plane_x[i] * plane_x[i] + plane_y[j] * plane_y[j] + 1.f);
+	}
+}
@@ -0,0 +1,101 @@
+// RayQueue class
+// a batch of rays that are processed together by one stage of the wavefront renderer.
+// before a stage runs, the rays are put in Morton (z-curve) order of their origin and
+// direction, so rays that are processed one after another, and by the same thread,
+// start close together and point the same way, and touch the same scene data.
+
+import javax.vecmath.*;
+import java.util.*;
+
+public class RayQueue {
+
+	private Ray rays[];
+	private int size = 0;
+
+	public RayQueue(int capacity) {
+		rays = new Ray[Math.max(capacity, 1)];
+	}
+
+	// adds a ray and returns its index in the queue
+	public int add(Ray ray) {
+		if (size == rays.length)
+			rays = Arrays.copyOf(rays, rays.length * 2);
+		rays[size] = ray;
+		return size++;
+	}
+
+	public Ray get(int k) { return rays[k]; }
+
+	public int size() { return size; }
+
+	// returns the queue indices sorted by the Morton code of origin and direction
+	public int[] sortedOrder() {
+		int order[] = new int[size];
+		if (size == 0)
+			return order;
+
+		// origins are quantized within their bounding box
+		Vector3f min = new Vector3f(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+		Vector3f max = new Vector3f(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+		for (int k = 0; k < size; k++) {
+			Vector3f o = rays[k].o;
+			min.x = Math.min(min.x, o.x);
+			min.y = Math.min(min.y, o.y);
+			min.z = Math.min(min.z, o.z);
+			max.x = Math.max(max.x, o.x);
+			max.y = Math.max(max.y, o.y);
+			max.z = Math.max(max.z, o.z);
+		}
+
+		// 30 bits of origin above 32 bits of direction, leaving the sign bit clear;
+		// the low bits are then replaced by the queue index, so sorting the packed
+		// keys sorts by the remaining high bits of the Morton code
+		int index_bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+		long index_mask = (1L << index_bits) - 1;
+		long packed[] = new long[size];
+		for (int k = 0; k < size; k++) {
+			Ray ray = rays[k];
+			long origin = morton3(quantize(ray.o.x, min.x, max.x, 1023),
+								  quantize(ray.o.y, min.y, max.y, 1023),
+								  quantize(ray.o.z, min.z, max.z, 1023));
+			long key = (origin << 32) | directionKey(ray.d);
+			packed[k] = (key & ~index_mask) | k;
+		}
+		Arrays.parallelSort(packed);
+		for (int k = 0; k < size; k++)
+			order[k] = (int)(packed[k] & index_mask);
+		return order;
+	}
+
+	private static int quantize(float v, float lo, float hi, int levels) {
+		if (hi <= lo)
+			return 0;
+		return Math.min((int)((v - lo) / (hi - lo) * (levels + 1)), levels);
+	}
+
+	// octahedral mapping of the direction, as for mesh normals, 16 bits per axis, interleaved
+	private static long directionKey(Vector3f d) {
+		int e = QuantizedTriMesh.encodeNormal(d);
+		return morton2(e >>> 16, e & 0xffff);
+	}
+
+	// interleave the low 10 bits of x, y and z
+	private static long morton3(int x, int y, int z) {
+		return (ClusteredMeshWriter.spread3(x) << 2) | (ClusteredMeshWriter.spread3(y) << 1) |
+			   ClusteredMeshWriter.spread3(z);
+	}
+
+	// interleave the low 16 bits of x and y
+	private static long morton2(int x, int y) {
+		return (spread2(x) << 1) | spread2(y);
+	}
+
+	private static long spread2(long v) {
+		v &= 0xffff;
+		v = (v | (v << 8)) & 0x00ff00ffL;
+		v = (v | (v << 4)) & 0x0f0f0f0fL;
+		v = (v | (v << 2)) & 0x33333333L;
+		v = (v | (v << 1)) & 0x55555555L;
+		return v;
+	}
+}
@@ -6,6 +6,8 @@ import java.awt.*;
 import java.awt.image.*;
 import javax.imageio.*;
 import java.io.*;
+import java.nio.file.*;
+import java.util.stream.*;
 
 public class RayTracer {
 
@@ -17,6 +19,42 @@ public class RayTracer {
 	private Color3f ambient;	// ambient color
 	private int maxdepth;		// max recursion depth for recursive ray tracing
 	private float exposure;		// camera exposure for the entire scene
+	private boolean rasterize;	// resolve primary visibility by rasterization instead of ray casting
+	private float lod_tolerance;	// max trimesh simplification error in pixels, 0 to disable
+	private File scene_dir;		// directory of the scene file, used to resolve mesh files
+	private long ray_count;		// number of rays traced, for performance statistics
+	private Vector<int[]> crops = new Vector<int[]> ();	// image rectangles (x, y, width, height) to render, all if empty
+	private boolean composite;	// write crops into the existing output image instead of a cropped image
+	private String sampler_type;	// none, stratified, halton or sobol
+	private float lens_radius;	// camera aperture radius, 0 for a pinhole camera
+	private float focus_dist;	// distance from the camera to the plane in focus
+	private Sampler sampler;	// pixel, lens and light sample generator, null for one fixed sample per pixel
+	private boolean wavefront;	// use the staged, batched integrator instead of per-pixel recursion
+	private int denoise_iterations;	// number of denoising filter passes, 0 to disable
+	private Denoiser denoiser;	// feature buffers and filter, null when denoising is off
+	private TileCache tile_cache = new TileCache(64L << 20);	// texture tiles shared by all textures
+	private TileCache cluster_cache = new TileCache(256L << 20);	// clusters shared by all paged meshes
+	private boolean paged_meshes = false;
+	private BVH bvh;			// bounding volume hierarchy over the shapes
+	private static final long SHADOW_MAP_TEXELS = 32L << 20;	// total size of the shadow maps of a frame
+	private float shadow_map_scale = 1.f;	// factor the shadow map resolutions were scaled by to fit
+	private int first_frame, last_frame;	// frame range of an animation, a single image if last_frame < first_frame
+	private Animation camera_track;	// keyframed eye, at, up and fovy, null for a fixed camera
+	private Vector<Animation> tracks = new Vector<Animation> ();	// keyframed transforms of shapes and lights
+	private Vector<int[]> track_targets = new Vector<int[]> ();	// what each track moves: {0 shapes or 1 lights, first index, end index}
+	private int last_shapes[] = {0, 0};	// index range of the shapes added by the last shape keyword
+	private int last_lights[] = {0, 0};	// index range of the lights added by the last light keyword
+	private String checkpoint_name;	// file an unfinished render is saved to and resumed from, null if none
+	private float checkpoint_interval;	// seconds between writes of the checkpoint to disk
+	private Checkpoint checkpoint;	// tile store of a checkpointed render, null if not checkpointed
+	private static final int CHECKPOINT_TILE = 64;	// tile size of checkpointed renders, in pixels
+	private int reproject_age;	// frames a reprojected pixel color may be reused for, 0 to disable
+	private ReprojectionCache reprojection;	// primary hits of the last frame, null if not reprojecting
+	private HitRecord reprojected_hits[];	// first hit of each pixel's camera ray traced by the reprojection check
+	private boolean reprojected_traced[];	// whether reprojected_hits holds the first hit of each pixel
+
+	private float camera_values[];	// eye, at, up and fovy of the camera keyword
+	private boolean scene_loaded;	// the scene file has been parsed, and the options are being parsed
 
 	private Camera camera;
 	private Vector<Material> materials = new Vector<Material> ();	// array of materials
@@ -32,20 +70,39 @@ public class RayTracer {
 		background = new Color3f(0,0,0);
 		ambient = new Color3f(0,0,0);
 		exposure = 1.0f;
+		rasterize = false;
+		lod_tolerance = 0.f;
+		composite = false;
+		wavefront = false;
+		denoise_iterations = 0;
+		sampler_type = new String("none");
+		lens_radius = 0.f;
+		focus_dist = 1.f;
+		first_frame = 0;
+		last_frame = -1;
+		checkpoint_name = null;
+		checkpoint_interval = 60.f;
+		reproject_age = 0;
 
 		image_name = new String("output.png");
 
-		camera = new Camera(new Vector3f(0,0,0), new Vector3f(0,-1,0), new Vector3f(0,1,0), 45.f, 1.f);
+		camera_values = new float[] {0,0,0, 0,-1,0, 0,1,0, 45.f};
+		camera = makeCamera(camera_values);
+		scene_loaded = false;
 
 		// add a default material: diffuse material with constant 1 reflectance
 		materials.add(Material.makeDiffuse(new Color3f(0,0,0), new Color3f(1,1,1)));
 	}
 
 	public static void main(String[] args) {
-		if (args.length == 1) {
-			new RayTracer(args[0]);
+		if (args.length >= 1) {
+			// extra arguments are parsed as scene keywords after the scene file
+			String options = "";
+			for (int i = 1; i < args.length; i++)
+				options += args[i] + " ";
+			new RayTracer(args[0], options, true);
 		} else {
-			System.out.println("Usage: java RayTracer input.scene");
+			System.out.println("Usage: java RayTracer input.scene [keyword values ...]");
 		}
 	}
 
@@ -58,23 +115,99 @@ public class RayTracer {
             }
             return color;
 	}
+
+	// trace a camera ray through pixel (i,j), recording its first hit for the denoiser
+	// w is the weight of the ray in the pixel color
+	private Color3f tracePrimary(Ray ray, int i, int j, float w)
+	{
+		HitRecord hit = checkIntersection(ray);
+		return shadePrimary(ray, hit, i, j, w);
+	}
+
+	private Color3f shadePrimary(Ray ray, HitRecord hit, int i, int j, float w)
+	{
+		if (denoiser != null)
+			denoiser.record(i, j, hit, (hit != null) ? diffuseColor(hit) : null, w);
+		if (reprojection != null)
+			reprojection.record(i, j, hit);
+		if (hit == null)
+			return background;
+		return rayColor(ray, hit, 0);
+	}
+
+	// average the samples of pixel (i,j), each with its own position in the pixel and on the lens
+	private Color3f sampledColor(int i, int j)
+	{
+		Color3f color = new Color3f(0, 0, 0);
+		Vector2f pixel_sample = new Vector2f();
+		Vector2f lens_sample = new Vector2f();
+		int spp = sampler.getSamplesPerPixel();
+		sampler.startPixel(i, j);
+		for (int s = 0; s < spp; s++) {
+			sampler.startSample(s);
+			sampler.get2D(pixel_sample);
+			sampler.get2D(lens_sample);
+			Ray ray = camera.getCameraRay((i + pixel_sample.x) / width, (j + pixel_sample.y) / height,
+										  lens_sample.x, lens_sample.y);
+			color.add(tracePrimary(ray, i, j, 1.f / spp));
+		}
+		color.scale(1.f / spp);
+		return color;
+	}
+
+	// shade a camera ray whose nearest shape was already found by the rasterizer
+	private Color3f primaryColor(Ray ray, int id, int i, int j)
+	{
+		return shadePrimary(ray, rasterizedHit(ray, id), i, j, 1.f);
+	}
+
+	// exact hit of the camera ray with shape id, the nearest shape the rasterizer found
+	// at its pixel. a pixel covered only by rounding at the edge of the shape is traced
+	private HitRecord rasterizedHit(Ray ray, int id)
+	{
+		if (id < 0)
+			return null;
+		HitRecord hit = shapes.get(id).hit(ray, 0.0001f, Float.MAX_VALUE);
+		return (hit != null) ? hit : intersect(ray);
+	}
         
         private Color3f rayColor(Ray ray, HitRecord hit, int depth) {
             if (depth > maxdepth)
                 return background;
             Color3f color = new Color3f(0, 0, 0);
+            Color3f kd = diffuseColor(hit);
+            Vector2f light_sample = new Vector2f();
             for (int i = 0; i < lights.size(); i++) {
                 Light light = lights.get(i);
                 //light.pos according to moodle
                 Vector3f lightPos = new Vector3f();
                 Vector3f lightDir = new Vector3f();
-                light.getLight(hit.pos, lightPos , lightDir);
+                Color3f lightIntens;
+                if (sampler != null) {
+                    sampler.get2D(light_sample);
+                    lightIntens = light.sampleLight(hit.pos, light_sample.x, light_sample.y, lightPos, lightDir);
+                } else {
+                    lightIntens = light.getLight(hit.pos, lightPos, lightDir);
+                }
+                if (lightIntens == null)
+                    continue;
+                ShadowMap shadow_map = light.getShadowMap();
+                if (shadow_map != null) {
+                    // look the hit point up in the light's shadow map instead of tracing a shadow ray
+                    float visibility = shadow_map.visibility(hit.pos, hit.normal);
+                    if (visibility > 0.f) {
+                        Color3f lit = evaluateShadingModel(hit, kd, lightIntens, lightDir, ray);
+                        lit.scale(visibility);
+                        color.add(lit);
+                    }
+                    continue;
+                }
                 Vector3f light_minus_hit = new Vector3f(lightPos.x - hit.pos.x, lightPos.y - hit.pos.y, lightPos.z - hit.pos.z);
                 Ray shadow_ray = new Ray(hit.pos, light_minus_hit);
                 float light_dist = light_minus_hit.length();  
-                HitRecord shad_hit = checkIntersection(shadow_ray);
-                if (shad_hit == null || shad_hit.t > light_dist) { 
-                    color.add(evaluateShadingModel(hit, light, ray));
+                ray_count++;
+                if (!isOccluded(shadow_ray, light_dist)) { 
+                    color.add(evaluateShadingModel(hit, kd, lightIntens, lightDir, ray));
                 }
             }
             //Handle Ambient Color
@@ -84,29 +217,34 @@ public class RayTracer {
         
         
         private HitRecord checkIntersection(Ray ray) {
-            float tmax = Float.MAX_VALUE;
-            float tmin = 0.0001f;
-            HitRecord hit = null;
-            for (int i = 0; i < shapes.size(); i++) {
-                HitRecord temp_hit = shapes.get(i).hit(ray, tmin, tmax);
-                if (temp_hit != null) {
-                    tmax = temp_hit.t;
-                    hit = temp_hit;
-                }
-            }
-            return hit;
+            ray_count++;
+            return intersect(ray);
+        }
+
+        // same as checkIntersection, without counting the ray, so it can run on several threads
+        private HitRecord intersect(Ray ray) {
+            return bvh.hit(ray, 0.0001f, Float.MAX_VALUE);
         }
         
-        private Color3f evaluateShadingModel(HitRecord hit, Light light, Ray ray) {
+        // diffuse reflectance at the hit point, with the material texture applied
+        // the texture is filtered over the footprint of a camera ray at distance hit.t
+        private Color3f diffuseColor(HitRecord hit) {
+            Texture texture = hit.material.texture;
+            if (texture == null || hit.uv == null)
+                return hit.material.Kd;
+            float footprint = hit.t * camera.pixelSpread(height) * hit.uv_scale;
+            Color3f kd = texture.lookup(hit.uv.x, hit.uv.y, footprint);
+            kd.x *= hit.material.Kd.x;
+            kd.y *= hit.material.Kd.y;
+            kd.z *= hit.material.Kd.z;
+            return kd;
+        }
+
+        // lightIntens and lightDir are what the light returned for the hit point
+        private Color3f evaluateShadingModel(HitRecord hit, Color3f kd, Color3f lightIntens, Vector3f lightDir, Ray ray) {
             Color3f color = new Color3f(0, 0, 0);
-            Vector3f lightPos = new Vector3f();
-            Vector3f lightDir = new Vector3f();
-            Color3f lightIntens = light.getLight(hit.pos, lightPos, lightDir);
-            if (lightIntens == null) {
-                return color;
-            }
             //Handle diffuse
-            Color3f diffuse = new Color3f(hit.material.Kd.x * lightIntens.x, hit.material.Kd.y * lightIntens.y, hit.material.Kd.z * lightIntens.z);
+            Color3f diffuse = new Color3f(kd.x * lightIntens.x, kd.y * lightIntens.y, kd.z * lightIntens.z);
             lightDir.normalize();
             diffuse.scale(Math.max(hit.normal.dot(lightDir), 0));
             color.add(diffuse);
@@ -165,33 +303,611 @@ public class RayTracer {
 	}
 
 	public RayTracer(String scene_name) {
+		this(scene_name, "", true);
+	}
+
+	// options are scene keywords applied after the scene file, e.g. "crop 0 0 64 64"
+	// when write is false, the rendered image is only kept in memory (see toImage)
+	RayTracer(String scene_name, String options, boolean write) {
 
 		// initialize and set default parameters
 		initialize();
 
 		// parse scene file
+		scene_dir = new File(scene_name).getAbsoluteFile().getParentFile();
 		parseScene(scene_name);
+		scene_loaded = true;
+		parseKeywords(new Scanner(options));
+		// the options may have changed the image size after the camera was made
+		camera = makeCamera(camera_values);
+		camera.setLens(lens_radius, focus_dist);
+		sampler = createSampler();
+
+		// a checkpoint holds the frame being rendered; the frames before it are done
+		int resume_frame = -1;
+		if (checkpoint_name != null) {
+			int spp = (sampler != null) ? sampler.getSamplesPerPixel() : 1;
+			int channels = 3 + ((denoise_iterations > 0) ? Denoiser.FEATURES : 0);
+			checkpoint = new Checkpoint(checkpoint_name, width, height, spp, channels, CHECKPOINT_TILE,
+										sceneSignature(scene_name, options), checkpoint_interval);
+			resume_frame = checkpoint.open();
+		}
 
+		boolean sequence = last_frame >= first_frame;
+		if (reproject_age > 0 && sequence) {
+			if (sampler != null)
+				System.out.println("reprojection needs one pinhole sample per pixel, shading every pixel instead");
+			else if (!tracks.isEmpty())
+				System.out.println("reprojection needs a scene where only the camera moves, shading every pixel instead");
+			else
+				reprojection = new ReprojectionCache(width, height, reproject_age);
+		}
+		int first = sequence ? first_frame : 0;
+		int last = sequence ? last_frame : 0;
+		for (int frame = first; frame <= last; frame++) {
+			if (frame < resume_frame) {
+				System.out.println("frame " + frame + " was completed by an earlier run");
+				continue;
+			}
+			if (sequence)
+				System.out.println("frame " + frame);
+			if (checkpoint != null && frame != resume_frame)
+				checkpoint.startFrame(frame);
+			setFrame(frame);
+			renderFrame(write ? (sequence ? frameName(frame) : image_name) : null);
+		}
+		if (checkpoint != null)
+			checkpoint.delete();
+		if (paged_meshes)
+			System.out.println("mesh cluster cache: " + cluster_cache.getHits() + " hits, " +
+							   cluster_cache.getMisses() + " misses");
+	}
+
+	// identifies the scene and options of a checkpointed render, so a checkpoint is
+	// only resumed by the same render
+	private long sceneSignature(String scene_name, String options)
+	{
+		long signature = 1125899906842597L;
+		try {
+			for (byte b : Files.readAllBytes(Paths.get(scene_name)))
+				signature = 31 * signature + b;
+		} catch (IOException e) {
+		}
+		for (int k = 0; k < options.length(); k++)
+			signature = 31 * signature + options.charAt(k);
+		return signature;
+	}
+
+	// camera with eye, at, up and fovy v, for the current image size
+	private Camera makeCamera(float v[])
+	{
+		return new Camera(new Vector3f(v[0], v[1], v[2]), new Vector3f(v[3], v[4], v[5]),
+						  new Vector3f(v[6], v[7], v[8]), v[9], (float)width / (float)height);
+	}
+
+	// move the camera, lights and shapes to where they are at frame, and update the bvh
+	private void setFrame(int frame)
+	{
+		if (camera_track != null) {
+			camera = makeCamera(camera_track.evaluate(frame));
+			camera.setLens(lens_radius, focus_dist);
+		}
+		for (int k = 0; k < tracks.size(); k++) {
+			Matrix4f m = Animation.toTransform(tracks.get(k).evaluate(frame));
+			int target[] = track_targets.get(k);
+			for (int i = target[1]; i < target[2]; i++) {
+				if (target[0] == 0)
+					shapes.get(i).setTransform(m);
+				else
+					lights.get(i).setTransform(m);
+			}
+		}
+
+		// static shapes are shared by all frames and never touched; the tree is refit
+		// to the moved shapes, and only rebuilt once refitting has made it too loose
+		if (bvh == null) {
+			bvh = new BVH(shapes);
+		} else if (!tracks.isEmpty()) {
+			bvh.refit();
+			if (bvh.needsRebuild()) {
+				bvh.build();
+				System.out.println("bvh rebuilt at frame " + frame);
+			}
+		}
+
+		// shadow maps are rendered once per light, for the scene as it is at this frame
+		buildShadowMaps();
+	}
+
+	// render the shadow maps of the lights that use them. a light without a resolution
+	// of its own gets one texel per image pixel across each face. when the maps would
+	// take more than SHADOW_MAP_TEXELS texels in all, as the many lights of an area light
+	// grid would, all resolutions are scaled down by the same factor to fit
+	private void buildShadowMaps()
+	{
+		final int resolution[] = new int[lights.size()];
+		long texels = 0;
+		for (int i = 0; i < lights.size(); i++) {
+			Light light = lights.get(i);
+			Camera faces[] = light.shadowCameras();
+			if (light.getShadowResolution() == 0 || faces == null)
+				continue;
+			resolution[i] = (light.getShadowResolution() == Light.AUTO_RESOLUTION) ? Math.max(width, height) : light.getShadowResolution();
+			texels += (long)faces.length * resolution[i] * resolution[i];
+		}
+		float scale = (texels > SHADOW_MAP_TEXELS) ? (float)Math.sqrt((double)SHADOW_MAP_TEXELS / texels) : 1.f;
+		if (scale < 1.f) {
+			for (int i = 0; i < lights.size(); i++)
+				resolution[i] = Math.max((int)(resolution[i] * scale), 1);
+		}
+		if (scale != shadow_map_scale)
+			System.out.println("shadow maps reduced to " + Math.round(scale * 100) + "% of their resolution to fit in memory");
+		shadow_map_scale = scale;
+		IntStream.range(0, lights.size()).parallel().forEach(i -> lights.get(i).buildShadowMap(shapes, resolution[i]));
+	}
+
+	// render the image as the scene is now, and write it to name unless name is null
+	private void renderFrame(String name)
+	{
 		// create floating point image
 		image = new Color3f[width][height];
 
+		// pixel window (xmin, ymin, xmax, ymax) to render; image rows are stored
+		// bottom-up while crop rectangles are given top-down, as in the output image
+		int window[] = {0, 0, width - 1, height - 1};
+		int crop_window[] = cropWindow();
+		if (crop_window != null) {
+			window[0] = crop_window[0];
+			window[1] = height - crop_window[1] - crop_window[3];
+			window[2] = crop_window[0] + crop_window[2] - 1;
+			window[3] = height - crop_window[1] - 1;
+		}
+
+		denoiser = (denoise_iterations > 0) ? new Denoiser(width, height, denoise_iterations) : null;
+
+		Rasterizer rasterizer = null;
+		if (rasterize && sampler != null) {
+			System.out.println("rasterized primary visibility needs one pinhole sample per pixel, ray tracing instead");
+		} else if (rasterize) {
+			System.out.print("rasterizing...");
+			rasterizer = new Rasterizer(width, height);
+			rasterizer.rasterize(shapes, camera, window);
+			System.out.println("\rrasterizing completed.");
+		}
+
+		if (reprojection != null)
+			reuseReprojected(window);
+
+		if (checkpoint != null) {
+			renderTiles(window, rasterizer);
+		} else if (wavefront) {
+			renderWavefront(window, rasterizer, true);
+		} else {
+			renderRecursive(window, rasterizer, true);
+		}
+
+		if (reprojection != null)
+			reprojection.endFrame(image);
+
+		if (denoiser != null) {
+			System.out.print("denoising...");
+			denoiser.filter(image, exposure);
+			System.out.println("\rdenoising completed.");
+		}
+
+		if (name != null)
+			writeImage(name);
+	}
+
+	// image name of a frame of an animation: output.png becomes output_0001.png
+	private String frameName(int frame)
+	{
+		int dot = image_name.lastIndexOf('.');
+		if (dot <= image_name.lastIndexOf(File.separatorChar))
+			dot = image_name.length();
+		return image_name.substring(0, dot) + String.format("_%04d", frame) + image_name.substring(dot);
+	}
+
+	// fill the pixels of window whose reprojected hit from the last frame passes the
+	// depth and normal check, leaving the others to be rendered. rows are checked in
+	// parallel, and the first hits traced for pixels that fail the check are kept in
+	// reprojected_hits, so the integrators shade them without tracing them again
+	private void reuseReprojected(final int window[])
+	{
+		reprojection.reproject(camera);
+		reprojected_hits = new HitRecord[width * height];
+		reprojected_traced = new boolean[width * height];
+		final int reused[] = new int[height], traced[] = new int[height];
+		IntStream.rangeClosed(window[1], window[3]).parallel().forEach(j -> {
+			for (int i = window[0]; i <= window[2]; i++) {
+				if (!inCrop(i, height - 1 - j) || !reprojection.hasCandidate(i, j))
+					continue;
+				HitRecord hit = intersect(camera.getCameraRay((float)i / width, (float)j / height));
+				traced[j]++;
+				Color3f color = reprojection.reuse(i, j, hit);
+				if (color == null) {
+					reprojected_hits[j * width + i] = hit;
+					reprojected_traced[j * width + i] = true;
+					continue;
+				}
+				image[i][j] = color;
+				if (denoiser != null)
+					denoiser.record(i, j, hit, diffuseColor(hit), 1.f);
+				reused[j]++;
+			}
+		});
+		int pixels = 0, total = 0;
+		for (int j = window[1]; j <= window[3]; j++) {
+			for (int i = window[0]; i <= window[2]; i++) {
+				if (inCrop(i, height - 1 - j))
+					pixels++;
+			}
+			total += reused[j];
+			ray_count += traced[j];
+		}
+		System.out.println("reprojected " + total + " of " + pixels + " pixels");
+	}
+
+	// returns whether the reprojection check already traced the camera ray of pixel p
+	// (j * width + i); its first hit is then in reprojected_hits
+	private boolean isReprojectedTraced(int p)
+	{
+		return reprojection != null && reprojected_traced[p];
+	}
+
+	// render the window tile by tile, for a checkpointed render: tiles that an earlier
+	// run finished are read back from the checkpoint, the others are rendered and saved
+	private void renderTiles(int window[], Rasterizer rasterizer)
+	{
+		int ntiles = checkpoint.getTileCount();
+		int restored = 0;
+		for (int t = 0; t < ntiles; t++) {
+			System.out.print("\rray tracing... " + t * 100 / ntiles + "%");
+			int tile_window[] = checkpoint.tileWindow(t);
+			tile_window[0] = Math.max(tile_window[0], window[0]);
+			tile_window[1] = Math.max(tile_window[1], window[1]);
+			tile_window[2] = Math.min(tile_window[2], window[2]);
+			tile_window[3] = Math.min(tile_window[3], window[3]);
+			if (tile_window[0] > tile_window[2] || tile_window[1] > tile_window[3])
+				continue;
+			if (checkpoint.isDone(t)) {
+				checkpoint.restoreTile(t, image, denoiser);
+				restored++;
+				continue;
+			}
+			if (wavefront) {
+				renderWavefront(tile_window, rasterizer, false);
+			} else {
+				renderRecursive(tile_window, rasterizer, false);
+			}
+			checkpoint.saveTile(t, image, denoiser);
+		}
+		checkpoint.flush();
+		System.out.println("\rray tracing completed" + ((restored > 0) ? ", " + restored + " tiles restored from " + checkpoint_name : "") + ".");
+	}
+
+	// render each pixel of the window in turn, shading its camera rays depth-first
+	// progress is printed if report is set
+	private void renderRecursive(int window[], Rasterizer rasterizer, boolean report)
+	{
 		int i, j;
 		float x, y;
-		for (j=0; j<height; j++)
+		for (j=window[1]; j<=window[3]; j++)
 		{
 			y = (float)j / (float)height;
-			System.out.print("\rray tracing... " + j*100/height + "%");
-			for (i=0; i<width; i ++)
+			if (report)
+				System.out.print("\rray tracing... " + (j-window[1])*100/(window[3]-window[1]+1) + "%");
+			for (i=window[0]; i<=window[2]; i ++)
 			{
+				if (!inCrop(i, height - 1 - j) || image[i][j] != null)
+					continue;
 				x = (float)i / (float)width;
-                                image[i][j] = raytracing(camera.getCameraRay(x, y), 0);
+				if (sampler != null) {
+					image[i][j] = sampledColor(i, j);
+					continue;
+				}
+				Ray ray = camera.getCameraRay(x, y);
+				if (isReprojectedTraced(j * width + i)) {
+					image[i][j] = shadePrimary(ray, reprojected_hits[j * width + i], i, j, 1.f);
+				} else if (rasterizer != null) {
+					ray_count++;
+					image[i][j] = primaryColor(ray, rasterizer.getShapeId(i, j), i, j);
+				} else {
+					image[i][j] = tracePrimary(ray, i, j, 1.f);
+				}
 			}
 		}
-		System.out.println("\rray tracing completed.                       ");
-				
-		writeImage();
+		if (report)
+			System.out.println("\rray tracing completed.                       ");
 	}
 
+	// wavefront integrator: instead of shading one pixel at a time, each stage runs
+	// over a whole batch of rays before the next stage starts: camera rays, intersection,
+	// shading (which queues one shadow ray per light), and shadow tests.
+	// the intersection and shadow stages process their queue in Morton order, and the
+	// intersection, shading and shadow stages run in parallel. results are stored per
+	// ray and summed per pixel in sample and light order, so the image is the same as
+	// the one renderRecursive makes.
+	private void renderWavefront(int window[], Rasterizer rasterizer, boolean report)
+	{
+		int spp = (sampler != null) ? sampler.getSamplesPerPixel() : 1;
+
+		// paths are ordered pixel by pixel, with the samples of a pixel next to each other
+		int npaths = 0;
+		int i, j;
+		for (j=window[1]; j<=window[3]; j++) {
+			for (i=window[0]; i<=window[2]; i++) {
+				if (inCrop(i, height - 1 - j) && image[i][j] == null)
+					npaths += spp;
+			}
+		}
+		int path_pixel[] = new int[npaths];
+		int path_sample[] = new int[npaths];
+		int n = 0;
+		for (j=window[1]; j<=window[3]; j++) {
+			for (i=window[0]; i<=window[2]; i++) {
+				if (!inCrop(i, height - 1 - j) || image[i][j] != null)
+					continue;
+				for (int s = 0; s < spp; s++) {
+					path_pixel[n] = j * width + i;
+					path_sample[n] = s;
+					n++;
+				}
+			}
+		}
+
+		// bound the number of rays in flight: a batch queues up to one shadow ray per light
+		int batch_size = Math.max((1 << 18) / Math.max(lights.size(), 1), 1024);
+		// sums of the window's pixels, row by row from its corner
+		int window_width = window[2] - window[0] + 1;
+		Color3f pixel_sum[] = new Color3f[window_width * (window[3] - window[1] + 1)];
+		for (int start = 0; start < npaths; start += batch_size) {
+			if (report)
+				System.out.print("\rray tracing... " + (long)start * 100 / npaths + "%");
+			int end = Math.min(start + batch_size, npaths);
+			traceBatch(start, end, path_pixel, path_sample, rasterizer, window, pixel_sum);
+		}
+
+		for (int q = 0; q < pixel_sum.length; q++) {
+			if (pixel_sum[q] == null)
+				continue;
+			if (sampler != null)
+				pixel_sum[q].scale(1.f / spp);
+			image[window[0] + q % window_width][window[1] + q / window_width] = pixel_sum[q];
+		}
+		if (report)
+			System.out.println("\rray tracing completed.                       ");
+	}
+
+	private void traceBatch(int start, int end, final int path_pixel[], final int path_sample[],
+							final Rasterizer rasterizer, int window[], Color3f pixel_sum[])
+	{
+		final int n = end - start;
+		final int nlights = lights.size();
+		final Color3f ambient_term[] = new Color3f[n];
+
+		// camera ray stage; samplers keep per-sample state, so this stage runs in order
+		final RayQueue camera_rays = new RayQueue(n);
+		Vector2f pixel_sample = new Vector2f();
+		Vector2f lens_sample = new Vector2f();
+		for (int r = 0; r < n; r++) {
+			int i = path_pixel[start + r] % width;
+			int j = path_pixel[start + r] / width;
+			if (sampler != null) {
+				sampler.startPixel(i, j);
+				sampler.startSample(path_sample[start + r]);
+				sampler.get2D(pixel_sample);
+				sampler.get2D(lens_sample);
+				camera_rays.add(camera.getCameraRay((i + pixel_sample.x) / width, (j + pixel_sample.y) / height,
+													lens_sample.x, lens_sample.y));
+			} else {
+				camera_rays.add(camera.getCameraRay((float)i / (float)width, (float)j / (float)height));
+			}
+		}
+
+		// intersection stage
+		final HitRecord hits[] = new HitRecord[n];
+		final int camera_order[] = camera_rays.sortedOrder();
+		IntStream.range(0, n).parallel().forEach(k -> {
+			int r = camera_order[k];
+			Ray ray = camera_rays.get(r);
+			int p = path_pixel[start + r];
+			if (isReprojectedTraced(p)) {
+				hits[r] = reprojected_hits[p];	// traced by the reprojection check
+			} else if (rasterizer != null) {
+				int id = rasterizer.getShapeId(p % width, p / width);
+				hits[r] = rasterizedHit(ray, id);
+			} else {
+				hits[r] = intersect(ray);
+			}
+		});
+
+		// shading stage: evaluate every light at every hit, and make the shadow rays
+		// that decide whether each contribution counts
+		final Color3f kds[] = new Color3f[n];
+		final Color3f contributions[][] = new Color3f[n][];
+		final Ray shadow_rays[][] = new Ray[n][];
+		final float light_dists[][] = new float[n][];
+		final ThreadLocal<Sampler> samplers = new ThreadLocal<Sampler>();
+		IntStream.range(0, n).parallel().forEach(r -> {
+			HitRecord hit = hits[r];
+			// camera rays are at depth 0, so like rayColor's depth > maxdepth test, a
+			// negative maxdepth leaves every pixel at the background color
+			if (hit == null || maxdepth < 0)
+				return;
+			Sampler local = null;
+			if (sampler != null) {
+				local = samplers.get();
+				if (local == null) {
+					local = sampler.copy();
+					samplers.set(local);
+				}
+				int p = path_pixel[start + r];
+				local.startPixel(p % width, p / width);
+				local.startSample(path_sample[start + r]);
+				local.setDimension(4);	// after the pixel and lens dimensions
+			}
+			Ray ray = camera_rays.get(r);
+			Color3f kd = diffuseColor(hit);
+			kds[r] = kd;
+			contributions[r] = new Color3f[nlights];
+			shadow_rays[r] = new Ray[nlights];
+			light_dists[r] = new float[nlights];
+			Vector2f light_sample = new Vector2f();
+			for (int l = 0; l < nlights; l++) {
+				Vector3f lightPos = new Vector3f();
+				Vector3f lightDir = new Vector3f();
+				Color3f lightIntens;
+				if (local != null) {
+					local.get2D(light_sample);
+					lightIntens = lights.get(l).sampleLight(hit.pos, light_sample.x, light_sample.y, lightPos, lightDir);
+				} else {
+					lightIntens = lights.get(l).getLight(hit.pos, lightPos, lightDir);
+				}
+				if (lightIntens == null)
+					continue;
+				ShadowMap shadow_map = lights.get(l).getShadowMap();
+				if (shadow_map != null) {
+					// shadowed by the shadow map, without a shadow ray
+					float visibility = shadow_map.visibility(hit.pos, hit.normal);
+					if (visibility > 0.f) {
+						contributions[r][l] = evaluateShadingModel(hit, kd, lightIntens, lightDir, ray);
+						contributions[r][l].scale(visibility);
+					}
+					continue;
+				}
+				Vector3f light_minus_hit = new Vector3f(lightPos.x - hit.pos.x, lightPos.y - hit.pos.y, lightPos.z - hit.pos.z);
+				shadow_rays[r][l] = new Ray(hit.pos, light_minus_hit);
+				light_dists[r][l] = light_minus_hit.length();
+				contributions[r][l] = evaluateShadingModel(hit, kd, lightIntens, lightDir, ray);
+			}
+			ambient_term[r] = new Color3f(hit.material.Ka.x * ambient.x, hit.material.Ka.y * ambient.y, hit.material.Ka.z * ambient.z);
+		});
+
+		// shadow stage: a contribution counts if nothing blocks its shadow ray before the light
+		int nshadow = 0;
+		for (int r = 0; r < n; r++) {
+			for (int l = 0; shadow_rays[r] != null && l < nlights; l++) {
+				if (shadow_rays[r][l] != null)
+					nshadow++;
+			}
+		}
+		final RayQueue shadow_queue = new RayQueue(nshadow);
+		final float shadow_dist[] = new float[nshadow];
+		final int shadow_index[][] = new int[n][];
+		for (int r = 0; r < n; r++) {
+			if (shadow_rays[r] == null)
+				continue;
+			shadow_index[r] = new int[nlights];
+			for (int l = 0; l < nlights; l++) {
+				if (shadow_rays[r][l] == null)
+					continue;
+				shadow_index[r][l] = shadow_queue.add(shadow_rays[r][l]);
+				shadow_dist[shadow_index[r][l]] = light_dists[r][l];
+			}
+		}
+		final boolean occluded[] = new boolean[shadow_queue.size()];
+		final int shadow_order[] = shadow_queue.sortedOrder();
+		IntStream.range(0, shadow_order.length).parallel().forEach(k -> {
+			int q = shadow_order[k];
+			occluded[q] = isOccluded(shadow_queue.get(q), shadow_dist[q]);
+		});
+		// camera rays the reprojection check traced were counted there
+		int camera_traced = 0;
+		for (int r = 0; r < n; r++) {
+			if (!isReprojectedTraced(path_pixel[start + r]))
+				camera_traced++;
+		}
+		ray_count += camera_traced + shadow_queue.size();
+
+		// accumulation stage, in path and light order
+		for (int r = 0; r < n; r++) {
+			int p = path_pixel[start + r];
+			if (denoiser != null)
+				denoiser.record(p % width, p / width, hits[r], kds[r], 1.f / ((sampler != null) ? sampler.getSamplesPerPixel() : 1));
+			if (reprojection != null)
+				reprojection.record(p % width, p / width, hits[r]);
+			Color3f color;
+			if (hits[r] == null) {
+				color = background;
+			} else if (contributions[r] == null) {
+				color = background;	// deeper than maxdepth
+			} else {
+				color = new Color3f(0, 0, 0);
+				for (int l = 0; l < nlights; l++) {
+					if (contributions[r][l] != null && (shadow_rays[r][l] == null || !occluded[shadow_index[r][l]]))
+						color.add(contributions[r][l]);
+				}
+				color.add(ambient_term[r]);
+			}
+			int q = (p / width - window[1]) * (window[2] - window[0] + 1) + (p % width - window[0]);
+			if (sampler == null) {
+				pixel_sum[q] = color;
+			} else {
+				if (pixel_sum[q] == null)
+					pixel_sum[q] = new Color3f(0, 0, 0);
+				pixel_sum[q].add(color);
+			}
+		}
+	}
+
+	// returns whether any shape blocks the ray before distance dist
+	private boolean isOccluded(Ray ray, float dist)
+	{
+		return bvh.shadowHit(ray, 0.0001f, dist);
+	}
+
+	// multiple samples per pixel or a lens need a sampler; otherwise each pixel
+	// keeps its single fixed camera ray
+	private Sampler createSampler()
+	{
+		if (sampler_type.compareToIgnoreCase("halton")==0)
+			return new HaltonSampler(xsample * ysample);
+		if (sampler_type.compareToIgnoreCase("sobol")==0)
+			return new SobolSampler(xsample * ysample);
+		if (sampler_type.compareToIgnoreCase("stratified")==0 || xsample * ysample > 1 || camera.hasLens())
+			return new StratifiedSampler(xsample, ysample);
+		return null;
+	}
+
+	// returns whether pixel (x,y) of the output image is inside a crop rectangle
+	private boolean inCrop(int x, int y)
+	{
+		if (crops.isEmpty())
+			return true;
+		for (int k = 0; k < crops.size(); k++) {
+			int rect[] = crops.get(k);
+			if (x >= rect[0] && x < rect[0] + rect[2] && y >= rect[1] && y < rect[1] + rect[3])
+				return true;
+		}
+		return false;
+	}
+
+	// returns the bounding rectangle (x, y, width, height) of all crop rectangles
+	// clipped to the image, or null if there are no crops
+	private int[] cropWindow()
+	{
+		if (crops.isEmpty())
+			return null;
+		int x0 = width, y0 = height, x1 = 0, y1 = 0;
+		for (int k = 0; k < crops.size(); k++) {
+			int rect[] = crops.get(k);
+			x0 = Math.min(x0, Math.max(rect[0], 0));
+			y0 = Math.min(y0, Math.max(rect[1], 0));
+			x1 = Math.max(x1, Math.min(rect[0] + rect[2], width));
+			y1 = Math.max(y1, Math.min(rect[1] + rect[3], height));
+		}
+		if (x0 >= x1 || y0 >= y1) {
+			System.out.println("crop rectangles are outside the image");
+			System.exit(0);
+		}
+		return new int[] {x0, y0, x1 - x0, y1 - y0};
+	}
+
+	public String getImageName() { return image_name; }
+
+	public long getRayCount() { return ray_count; }
+
 	private void parseScene(String scene_name)
 	{
 		File file = null;
@@ -203,6 +919,12 @@ public class RayTracer {
 			System.out.println("error reading from file " + scene_name);
 			System.exit(0);
 		}
+		parseKeywords(scanner);
+		scanner.close();
+	}
+
+	private void parseKeywords(Scanner scanner)
+	{
 		String keyword;
 		while(scanner.hasNext()) {
 
@@ -221,13 +943,11 @@ public class RayTracer {
 
 			} else if (keyword.compareToIgnoreCase("camera")==0) {
 
-				Vector3f eye = new Vector3f(scanner.nextFloat(), scanner.nextFloat(), scanner.nextFloat());
-				Vector3f at  = new Vector3f(scanner.nextFloat(), scanner.nextFloat(), scanner.nextFloat());
-				Vector3f up  = new Vector3f(scanner.nextFloat(), scanner.nextFloat(), scanner.nextFloat());
-				float fovy = scanner.nextFloat();
-				float aspect_ratio = (float)width / (float)height;
-
-				camera = new Camera(eye, at, up, fovy, aspect_ratio);
+				// eye, at, up and fovy
+				camera_values = new float[10];
+				for (int k = 0; k < camera_values.length; k++)
+					camera_values[k] = scanner.nextFloat();
+				camera = makeCamera(camera_values);
 
 			} else if (keyword.compareToIgnoreCase("background")==0) {
 
@@ -241,6 +961,127 @@ public class RayTracer {
 
 				maxdepth = scanner.nextInt();
 
+			} else if (keyword.compareToIgnoreCase("primary")==0) {
+
+				// primary visibility mode: raster or trace
+				String mode = scanner.next();
+				if (mode.compareToIgnoreCase("raster")==0) {
+					rasterize = true;
+				} else if (mode.compareToIgnoreCase("trace")==0) {
+					rasterize = false;
+				} else {
+					System.out.println("undefined primary visibility mode: " + mode);
+				}
+
+			} else if (keyword.compareToIgnoreCase("lod")==0) {
+
+				// meshes pick their level when they are loaded
+				float tolerance = scanner.nextFloat();
+				if (scene_loaded)
+					System.out.println("lod after the scene file has no effect, as its meshes are loaded: put it in the scene file before them");
+				else
+					lod_tolerance = tolerance;
+
+			} else if (keyword.compareToIgnoreCase("samples")==0) {
+
+				// super sampling grid: samples per pixel in x and y
+				xsample = Math.max(scanner.nextInt(), 1);
+				ysample = Math.max(scanner.nextInt(), 1);
+
+			} else if (keyword.compareToIgnoreCase("sampler")==0) {
+
+				sampler_type = scanner.next();
+				if (sampler_type.compareToIgnoreCase("none")!=0 && sampler_type.compareToIgnoreCase("stratified")!=0 &&
+					sampler_type.compareToIgnoreCase("halton")!=0 && sampler_type.compareToIgnoreCase("sobol")!=0) {
+					System.out.println("undefined sampler type: " + sampler_type);
+					sampler_type = "none";
+				}
+
+			} else if (keyword.compareToIgnoreCase("lens")==0) {
+
+				// thin lens camera: aperture radius and focus distance
+				lens_radius = scanner.nextFloat();
+				focus_dist = scanner.nextFloat();
+
+			} else if (keyword.compareToIgnoreCase("integrator")==0) {
+
+				// recursive: shade pixel by pixel; wavefront: staged, sorted ray batches
+				String mode = scanner.next();
+				if (mode.compareToIgnoreCase("wavefront")==0) {
+					wavefront = true;
+				} else if (mode.compareToIgnoreCase("recursive")==0) {
+					wavefront = false;
+				} else {
+					System.out.println("undefined integrator: " + mode);
+				}
+
+			} else if (keyword.compareToIgnoreCase("denoise")==0) {
+
+				// number of edge-aware filter passes applied before writing the image
+				denoise_iterations = scanner.nextInt();
+
+			} else if (keyword.compareToIgnoreCase("crop")==0) {
+
+				// rectangle in output image pixels: x y width height
+				int rect[] = {scanner.nextInt(), scanner.nextInt(), scanner.nextInt(), scanner.nextInt()};
+				crops.add(rect);
+
+			} else if (keyword.compareToIgnoreCase("crop_output")==0) {
+
+				// write crops as a cropped image, or composited into the existing image
+				String mode = scanner.next();
+				if (mode.compareToIgnoreCase("cropped")==0) {
+					composite = false;
+				} else if (mode.compareToIgnoreCase("composite")==0) {
+					composite = true;
+				} else {
+					System.out.println("undefined crop output mode: " + mode);
+				}
+
+			} else if (keyword.compareToIgnoreCase("frames")==0) {
+
+				// render an animation: first and last frame, written as numbered images
+				first_frame = scanner.nextInt();
+				last_frame = scanner.nextInt();
+
+			} else if (keyword.compareToIgnoreCase("checkpoint")==0) {
+
+				// save the unfinished render to a file, and resume from it if it exists:
+				// file name, and optionally the seconds between writes to disk
+				checkpoint_name = scanner.next();
+				if (scanner.hasNextFloat())
+					checkpoint_interval = scanner.nextFloat();
+
+			} else if (keyword.compareToIgnoreCase("reproject")==0) {
+
+				// reuse the shaded pixels of the last frame where only the camera moves:
+				// optionally the number of frames a pixel may be reused for (default 8)
+				reproject_age = scanner.hasNextInt() ? scanner.nextInt() : 8;
+
+			} else if (keyword.compareToIgnoreCase("keyframe")==0) {
+
+				// parse keyframe
+				parseKeyframe(scanner);
+
+			} else if (keyword.compareToIgnoreCase("shadow")==0) {
+
+				// shadows of the lights added by the last light keyword:
+				// ray, or map with an optional resolution (default: the image size)
+				String mode = scanner.next();
+				int resolution = 0;
+				if (mode.compareToIgnoreCase("map")==0) {
+					resolution = scanner.hasNextInt() ? Math.max(scanner.nextInt(), 1) : Light.AUTO_RESOLUTION;
+				} else if (mode.compareToIgnoreCase("ray")!=0) {
+					System.out.println("undefined shadow mode: " + mode);
+				}
+				for (int i = last_lights[0]; i < last_lights[1]; i++) {
+					if (resolution != 0 && lights.get(i).shadowCameras() == null) {
+						System.out.println("shadow maps are only supported for point and spot lights");
+						break;
+					}
+					lights.get(i).setShadowResolution(resolution);
+				}
+
 			} else if (keyword.compareToIgnoreCase("light")==0) {
 
 				// parse light
@@ -251,6 +1092,21 @@ public class RayTracer {
 				// parse material
 				parseMaterial(scanner);
 
+			} else if (keyword.compareToIgnoreCase("texture")==0) {
+
+				// diffuse texture of the last material
+				materials.lastElement().texture = new Texture(resolvePath(scanner.next()), tile_cache);
+
+			} else if (keyword.compareToIgnoreCase("texture_cache")==0) {
+
+				// texture tile cache capacity in megabytes
+				tile_cache.setCapacity((long)(scanner.nextFloat() * (1 << 20)));
+
+			} else if (keyword.compareToIgnoreCase("mesh_cache")==0) {
+
+				// paged mesh cluster cache capacity in megabytes
+				cluster_cache.setCapacity((long)(scanner.nextFloat() * (1 << 20)));
+
 			} else if (keyword.compareToIgnoreCase("shape")==0) {
 
 				// parse shape
@@ -260,10 +1116,61 @@ public class RayTracer {
 				System.out.println("undefined keyword: " + keyword);
 			}
 		}
-		scanner.close();
+	}
+
+	// keyframe camera frame eye(3) at(3) up(3) fovy
+	// keyframe shape|light frame tx ty tz rx ry rz scale
+	// shape and light keyframes move everything the last shape or light keyword added
+	private void parseKeyframe(Scanner scanner)
+	{
+		String target = scanner.next();
+		float frame = scanner.nextFloat();
+		if (target.compareToIgnoreCase("camera")==0) {
+
+			float values[] = new float[10];
+			for (int k = 0; k < values.length; k++)
+				values[k] = scanner.nextFloat();
+			if (camera_track == null)
+				camera_track = new Animation();
+			camera_track.addKey(frame, values);
+
+		} else if (target.compareToIgnoreCase("shape")==0 || target.compareToIgnoreCase("light")==0) {
+
+			float values[] = new float[7];
+			for (int k = 0; k < values.length; k++)
+				values[k] = scanner.nextFloat();
+			boolean is_shape = target.compareToIgnoreCase("shape")==0;
+			int range[] = is_shape ? last_shapes : last_lights;
+			if (range[0] == range[1]) {
+				System.out.println("keyframe " + target + " before any " + target);
+				return;
+			}
+			int key[] = {is_shape ? 0 : 1, range[0], range[1]};
+			int k;
+			for (k = 0; k < tracks.size(); k++) {
+				if (Arrays.equals(track_targets.get(k), key))
+					break;
+			}
+			if (k == tracks.size()) {
+				tracks.add(new Animation());
+				track_targets.add(key);
+			}
+			tracks.get(k).addKey(frame, values);
+
+		} else {
+			System.out.println("undefined keyframe target: " + target);
+		}
 	}
 
 	private void parseLight(Scanner scanner)
+	{
+		int first = lights.size();
+		parseLightType(scanner);
+		if (lights.size() > first)
+			last_lights = new int[] {first, lights.size()};
+	}
+
+	private void parseLightType(Scanner scanner)
 	{
 		String lighttype;
 		lighttype = scanner.next();
@@ -285,6 +1192,14 @@ public class RayTracer {
 
 			lights.add(new SpotLight(from, to, spot_exponent, spot_cutoff, intens));
 
+		} else if (lighttype.compareToIgnoreCase("area_sampled")==0) {
+
+			/* add a new area light, sampled per pixel sample instead of split into a grid */
+			Vector3f pos = new Vector3f(scanner.nextFloat(), scanner.nextFloat(), scanner.nextFloat());
+			float size = scanner.nextFloat();
+			Color3f intens = new Color3f(scanner.nextFloat(), scanner.nextFloat(), scanner.nextFloat());
+			lights.add(new AreaLight(pos, size, intens));
+
 		} else if (lighttype.compareToIgnoreCase("area")==0) {
 
 			/* add a new area light */
@@ -354,6 +1269,14 @@ public class RayTracer {
 	}
 
 	private void parseShape(Scanner scanner)
+	{
+		int first = shapes.size();
+		parseShapeType(scanner);
+		if (shapes.size() > first)
+			last_shapes = new int[] {first, shapes.size()};
+	}
+
+	private void parseShapeType(Scanner scanner)
 	{
 		String shapetype;
 		shapetype = scanner.next();
@@ -389,31 +1312,54 @@ public class RayTracer {
 
 			shapes.add(new Triangle(p0, p1, p2, n0, n1, n2, material));
 
-		} else if (shapetype.compareToIgnoreCase("trimesh")==0) {
+		} else if (shapetype.compareToIgnoreCase("trimesh_quantized")==0) {
+
+			TriMesh mesh = loadMesh(scanner.next());
+			shapes.add(new QuantizedTriMesh(mesh, material));
+
+		} else if (shapetype.compareToIgnoreCase("trimesh_paged")==0) {
+
+			// a trimesh file is converted to a cluster file next to it once, or again when
+			// it has changed or the cluster file is not a complete one of this version;
+			// a cluster file can also be given directly
+			String mesh_name = resolvePath(scanner.next());
+			String cluster_name = mesh_name;
+			if (!mesh_name.endsWith(".clusters")) {
+				cluster_name = mesh_name + ".clusters";
+				File clusters = new File(cluster_name);
+				if (!clusters.exists() || clusters.lastModified() < new File(mesh_name).lastModified() ||
+					!ClusteredMeshWriter.isValid(cluster_name)) {
+					System.out.println("converting " + mesh_name + " to " + cluster_name);
+					ClusteredMeshWriter.convert(mesh_name, cluster_name);
+				}
+			}
+			shapes.add(new PagedTriMesh(cluster_name, cluster_cache, material));
+			paged_meshes = true;
 
-			TriMesh	mesh = new TriMesh();
-			mesh.load(scanner.next());
+		} else if (shapetype.compareToIgnoreCase("trimesh")==0) {
 
-			if (mesh.type.compareToIgnoreCase("triangle")==0) {
-				int i;
-				int idx0, idx1, idx2;
-				for (i=0; i<mesh.faces.length/3; i++) {
-					idx0 = mesh.faces[i*3+0];
-					idx1 = mesh.faces[i*3+1];
-					idx2 = mesh.faces[i*3+2];
-					shapes.add(new Triangle(mesh.verts[idx0], mesh.verts[idx1], mesh.verts[idx2], material));
-				}
+			TriMesh	mesh = loadMesh(scanner.next());
 
-			} else if (mesh.type.compareToIgnoreCase("triangle_n")==0) {
+			if (mesh.type.compareToIgnoreCase("triangle")==0 || mesh.type.compareToIgnoreCase("triangle_n")==0 ||
+				mesh.type.compareToIgnoreCase("triangle_t")==0 || mesh.type.compareToIgnoreCase("triangle_nt")==0) {
 				int i;
 				int idx0, idx1, idx2;
 				for (i=0; i<mesh.faces.length/3; i++) {
 					idx0 = mesh.faces[i*3+0];
 					idx1 = mesh.faces[i*3+1];
 					idx2 = mesh.faces[i*3+2];
-					shapes.add(new Triangle(mesh.verts[idx0], mesh.verts[idx1], mesh.verts[idx2],
-											mesh.normals[idx0], mesh.normals[idx1], mesh.normals[idx2],
-											material));
+					Triangle triangle;
+					if (mesh.normals != null) {
+						triangle = new Triangle(mesh.verts[idx0], mesh.verts[idx1], mesh.verts[idx2],
+												mesh.normals[idx0], mesh.normals[idx1], mesh.normals[idx2],
+												material);
+					} else {
+						triangle = new Triangle(mesh.verts[idx0], mesh.verts[idx1], mesh.verts[idx2], material);
+					}
+					if (mesh.uvs != null) {
+						triangle.setTexCoords(mesh.uvs[idx0], mesh.uvs[idx1], mesh.uvs[idx2]);
+					}
+					shapes.add(triangle);
 				}
 
 			} else {
@@ -426,9 +1372,33 @@ public class RayTracer {
 		}
 	}
 
-	// write image to a disk file
+	// files named in the scene are looked up next to the scene file first
+	private String resolvePath(String name)
+	{
+		File file = new File(name);
+		if (!file.isAbsolute() && scene_dir != null && new File(scene_dir, name).exists())
+			return new File(scene_dir, name).getPath();
+		return name;
+	}
+
+	private TriMesh loadMesh(String mesh_name)
+	{
+		TriMesh mesh = new TriMesh();
+		mesh.load(resolvePath(mesh_name));
+
+		if (lod_tolerance > 0.f) {
+			// pick the coarsest level that stays within tolerance at the mesh's screen size
+			mesh.buildLevels();
+			mesh = mesh.selectLevel(mesh.screenSize(camera, width, height), lod_tolerance);
+			System.out.println(mesh_name + ": using " + mesh.faces.length/3 + " faces" +
+							   (mesh.resolution > 0 ? " (lod resolution " + mesh.resolution + ")" : ""));
+		}
+		return mesh;
+	}
+
+	// convert the floating point image to an 8-bit image
 	// image will be multiplied by exposure
-	private void writeImage() {
+	public BufferedImage toImage() {
 		int x, y, index;
 		int pixels[] = new int[width * height];
 
@@ -437,6 +1407,11 @@ public class RayTracer {
 		float gamma = 1.f / 2.2f;
 		for (y=height-1; y >= 0; y --) {
 			for (x=0; x<width; x ++) {
+				if (image[x][y] == null) {
+					// pixel outside the crop rectangles
+					pixels[index++] = 0;
+					continue;
+				}
 				Color3f c = new Color3f(image[x][y]);
 				c.x = (float)Math.pow(c.x*exposure, gamma);
 				c.y = (float)Math.pow(c.y*exposure, gamma);
@@ -449,7 +1424,35 @@ public class RayTracer {
 
 		BufferedImage oimage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		oimage.setRGB(0, 0, width, height, pixels, 0, width);
-		File outfile = new File(image_name);
+		return oimage;
+	}
+
+	// write image to a disk file
+	private void writeImage(String name) {
+		BufferedImage oimage = toImage();
+		int crop_window[] = cropWindow();
+		if (crop_window != null && composite) {
+			// paste the rendered pixels into the existing image
+			BufferedImage existing = null;
+			try {
+				existing = ImageIO.read(new File(name));
+			} catch(IOException e) {
+			}
+			if (existing != null && existing.getWidth() == width && existing.getHeight() == height) {
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						if (inCrop(x, y))
+							existing.setRGB(x, y, oimage.getRGB(x, y));
+					}
+				}
+				oimage = existing;
+			} else {
+				System.out.println("no " + width + "x" + height + " image " + name + " to composite into, writing the full image, black outside the crops");
+			}
+		} else if (crop_window != null) {
+			oimage = oimage.getSubimage(crop_window[0], crop_window[1], crop_window[2], crop_window[3]);
+		}
+		File outfile = new File(name);
 		try {
 			ImageIO.write(oimage, "png", outfile);
 		} catch(IOException e) {
@@ -0,0 +1,154 @@
+// ReprojectionCache class
+// reuses the shaded primary hits of the last frame of an animation in which only the
+// camera moves. after a frame, the hit point, normal, material and color of every pixel
+// are kept; before the next frame they are projected through the new camera into the
+// pixels they now fall in, the nearest one winning where several land in one pixel.
+// a pixel is only shaded again when nothing lands in it (it was hidden or outside the
+// last view), when its camera ray hits another surface than the point that landed
+// there (the depth and normal check), when its material looks different from another
+// direction (specular, reflective or refractive), or when its color has been reused for
+// max_age frames, so errors from reuse cannot build up.
+
+import javax.vecmath.*;
+import java.util.*;
+
+public class ReprojectionCache {
+
+	private int width, height;
+	private int max_age;			// frames a color may be reused for
+	private Frame last = null;		// hits of the last frame, null before the first frame
+	private Frame next;				// hits of the frame being rendered
+	private int source[];			// pixel of the last frame reprojected into each pixel, -1 if none
+	private float depth[];			// distance from the eye of the reprojected hit of each pixel
+	private Vector3f eye;
+
+	// the primary hits of a frame: pixels without a reusable hit have a null material
+	private static class Frame {
+		float pos[], normal[], color[];
+		Material material[];
+		int age[];
+
+		Frame(int n) {
+			pos = new float[n * 3];
+			normal = new float[n * 3];
+			color = new float[n * 3];
+			material = new Material[n];
+			age = new int[n];
+		}
+	}
+
+	public ReprojectionCache(int _width, int _height, int _max_age) {
+		width = _width;
+		height = _height;
+		max_age = _max_age;
+		next = new Frame(width * height);
+		source = new int[width * height];
+		depth = new float[width * height];
+	}
+
+	// the color at a hit can be reused from another direction
+	private static boolean viewIndependent(Material m) {
+		return m.Ks.x == 0.f && m.Ks.y == 0.f && m.Ks.z == 0.f &&
+			   m.Kr.x == 0.f && m.Kr.y == 0.f && m.Kr.z == 0.f &&
+			   m.Kt.x == 0.f && m.Kt.y == 0.f && m.Kt.z == 0.f;
+	}
+
+	// project the hits of the last frame into the pixels of camera, whose camera ray
+	// through pixel (i,j) is at image coordinate (i/width, j/height)
+	public void reproject(Camera camera) {
+		Arrays.fill(source, -1);
+		Arrays.fill(depth, Float.MAX_VALUE);
+		eye = camera.getEye();
+		if (last == null)
+			return;
+		Vector3f p = new Vector3f();
+		Vector2f s = new Vector2f();
+		for (int q = 0; q < width * height; q++) {
+			if (last.material[q] == null || last.age[q] >= max_age)
+				continue;
+			p.set(last.pos[q*3], last.pos[q*3+1], last.pos[q*3+2]);
+			if (!camera.project(p, s))
+				continue;
+			int i = Math.round(s.x * width);
+			int j = Math.round(s.y * height);
+			if (i < 0 || i >= width || j < 0 || j >= height)
+				continue;
+			p.sub(eye);
+			float d = p.length();
+			if (d < depth[j * width + i]) {
+				depth[j * width + i] = d;
+				source[j * width + i] = q;
+			}
+		}
+	}
+
+	// returns whether a hit of the last frame was reprojected into pixel (i,j)
+	public boolean hasCandidate(int i, int j) {
+		return source[j * width + i] >= 0;
+	}
+
+	// returns the reprojected color of pixel (i,j) if hit, the first hit of the pixel's
+	// camera ray, is on the same surface as the reprojected hit, or null if the pixel
+	// has to be shaded. a reused color is kept for the next frame, one frame older
+	public Color3f reuse(int i, int j, HitRecord hit) {
+		int p = j * width + i;
+		int q = source[p];
+		if (q < 0 || hit == null || hit.material != last.material[q])
+			return null;
+		float nx = last.normal[q*3], ny = last.normal[q*3+1], nz = last.normal[q*3+2];
+		if (hit.normal.x * nx + hit.normal.y * ny + hit.normal.z * nz < 0.95f)
+			return null;
+		// the reprojected hit has to lie on the plane of the new hit; points along the
+		// plane may be up to a pixel apart, since hits are reprojected to the nearest pixel
+		float dx = last.pos[q*3] - hit.pos.x, dy = last.pos[q*3+1] - hit.pos.y, dz = last.pos[q*3+2] - hit.pos.z;
+		if (Math.abs(dx * hit.normal.x + dy * hit.normal.y + dz * hit.normal.z) > 0.01f * depth[p])
+			return null;
+
+		// keep the hit that was shaded rather than the new one, so reused hits do not drift
+		for (int k = 0; k < 3; k++) {
+			next.pos[p*3+k] = last.pos[q*3+k];
+			next.normal[p*3+k] = last.normal[q*3+k];
+			next.color[p*3+k] = last.color[q*3+k];
+		}
+		next.material[p] = last.material[q];
+		next.age[p] = last.age[q] + 1;
+		return new Color3f(last.color[q*3], last.color[q*3+1], last.color[q*3+2]);
+	}
+
+	// keep the first hit of the camera ray of a shaded pixel (i,j), null if it missed
+	public void record(int i, int j, HitRecord hit) {
+		int p = j * width + i;
+		if (hit == null || !viewIndependent(hit.material)) {
+			next.material[p] = null;
+			return;
+		}
+		next.pos[p*3] = hit.pos.x;
+		next.pos[p*3+1] = hit.pos.y;
+		next.pos[p*3+2] = hit.pos.z;
+		next.normal[p*3] = hit.normal.x;
+		next.normal[p*3+1] = hit.normal.y;
+		next.normal[p*3+2] = hit.normal.z;
+		next.material[p] = hit.material;
+		// the pixels of the first frame start at different ages, so they do not all
+		// expire and get shaded again in the same frame
+		next.age[p] = (last == null) ? (int)((p * 2654435761L) % max_age) : 0;
+	}
+
+	// keep the colors of the frame that was rendered, and start the next one
+	public void endFrame(Color3f image[][]) {
+		for (int p = 0; p < width * height; p++) {
+			Color3f c = image[p % width][p / width];
+			if (c == null) {
+				next.material[p] = null;
+				continue;
+			}
+			next.color[p*3] = c.x;
+			next.color[p*3+1] = c.y;
+			next.color[p*3+2] = c.z;
+		}
+		Frame done = next;
+		next = (last != null) ? last : new Frame(width * height);
+		Arrays.fill(next.material, null);
+		last = done;
+	}
+}
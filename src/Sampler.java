@@ -0,0 +1,70 @@
+// Sampler class
+// defines the base class for pixel samplers
+// a sampler hands out the values of each sample one dimension at a time:
+// the first two dimensions place the sample in the pixel, the next two on the
+// camera lens, and each light then takes two more to pick a point on the light.
+// all values are computed from the pixel, sample index and dimension alone,
+// so samplers are deterministic and need no shared random state.
+
+import javax.vecmath.*;
+
+public abstract class Sampler implements Cloneable {
+
+	protected int spp;				// samples per pixel
+	protected int px, py;			// current pixel
+	protected int index;			// current sample index in the pixel
+	protected int dimension;		// next dimension of the current sample
+
+	// startPixel is called before generating the samples of pixel (x,y)
+	public void startPixel(int x, int y) {
+		px = x;
+		py = y;
+	}
+
+	// startSample is called before the dimensions of sample i are requested
+	public void startSample(int i) {
+		index = i;
+		dimension = 0;
+	}
+
+	// continue the current sample at dimension d, e.g. to resume it on another thread
+	public void setDimension(int d) {
+		dimension = d;
+	}
+
+	// returns an independent sampler with the same settings, for use by another thread
+	public Sampler copy() {
+		try {
+			return (Sampler)clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// returns the next dimension of the current sample, in [0,1)
+	abstract public float get1D();
+
+	// returns the next two dimensions of the current sample
+	public void get2D(Vector2f out) {
+		out.x = get1D();
+		out.y = get1D();
+	}
+
+	public int getSamplesPerPixel() { return spp; }
+
+	// integer hash (murmur3 finalizer) of its arguments, used for scrambling
+	protected static int hash(int a, int b, int c, int d) {
+		int h = a * 0x8da6b343 ^ b * 0xd8163841 ^ c * 0xcb1ab31f ^ d * 0x165667b1;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	// maps the high bits of an integer to a float in [0,1)
+	protected static float toFloat(int bits) {
+		return (bits >>> 8) * (1.f / (1 << 24));
+	}
+}
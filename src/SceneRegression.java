@@ -0,0 +1,200 @@
+// SceneRegression class
+// renders every scene in a directory, compares each image against its reference
+// render with PSNR, and records wall time, rays/sec and peak heap to a history file.
+// a scene fails if its PSNR is below the threshold, or if its performance is worse
+// than the last passing run in the history by more than the given margin.
+// one untimed render warms up the JIT before the first scene, and each scene is then
+// rendered several times and measured by its best run, since single runs of short
+// scenes vary by more than the margin.
+
+import java.awt.image.*;
+import javax.imageio.*;
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+public class SceneRegression {
+
+	private File scene_dir;		// directory holding the .scene files
+	private File reference_dir;	// directory holding the reference renders
+	private File history_file;	// csv file with the performance of previous passing runs
+	private float margin;		// allowed relative performance regression, e.g. 0.25 for 25%
+	private float min_psnr;		// minimum PSNR in dB for an image to match its reference
+	private int runs;			// timed renders per scene, the best of which is measured
+
+	public static void main(String[] args) {
+		if (args.length < 2 || args.length > 6) {
+			System.out.println("Usage: java SceneRegression scene_dir reference_dir [history.csv] [margin] [min_psnr] [runs]");
+			System.exit(2);
+		}
+		SceneRegression regression = new SceneRegression(new File(args[0]), new File(args[1]),
+				new File(args.length > 2 ? args[2] : "regression_history.csv"),
+				args.length > 3 ? Float.parseFloat(args[3]) : 0.25f,
+				args.length > 4 ? Float.parseFloat(args[4]) : 40.f,
+				args.length > 5 ? Integer.parseInt(args[5]) : 3);
+		System.exit(regression.run() ? 0 : 1);
+	}
+
+	public SceneRegression(File _scene_dir, File _reference_dir, File _history_file, float _margin, float _min_psnr, int _runs) {
+		scene_dir = _scene_dir;
+		reference_dir = _reference_dir;
+		history_file = _history_file;
+		margin = _margin;
+		min_psnr = _min_psnr;
+		runs = Math.max(_runs, 1);
+	}
+
+	// renders and checks every scene, returns true if all of them pass
+	public boolean run() {
+		File scenes[] = scene_dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) { return name.endsWith(".scene"); }
+		});
+		if (scenes == null || scenes.length == 0) {
+			System.out.println("no scenes found in " + scene_dir);
+			return false;
+		}
+		Arrays.sort(scenes);
+
+		// warm up the JIT, so the first scene is not timed while the renderer is compiled
+		new RayTracer(scenes[0].getPath(), "", false);
+
+		Map<String, String[]> history = readHistory();
+		boolean passed = true;
+		for (File scene : scenes) {
+			passed &= check(scene, history.get(scene.getName()));
+		}
+		return passed;
+	}
+
+	private boolean check(File scene, String[] previous) {
+		String name = scene.getName();
+
+		// the lowest time and peak heap of the runs; every run traces the same rays
+		RayTracer tracer = null;
+		double seconds = Double.MAX_VALUE;
+		long peak_heap = Long.MAX_VALUE;
+		List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+		for (int run = 0; run < runs; run++) {
+			tracer = null;
+			System.gc();
+			for (MemoryPoolMXBean pool : pools) {
+				if (pool.getType() == MemoryType.HEAP)
+					pool.resetPeakUsage();
+			}
+			long start = System.nanoTime();
+			tracer = new RayTracer(scene.getPath(), "", false);
+			seconds = Math.min(seconds, (System.nanoTime() - start) * 1e-9);
+			long heap = 0;
+			for (MemoryPoolMXBean pool : pools) {
+				if (pool.getType() == MemoryType.HEAP)
+					heap += pool.getPeakUsage().getUsed();
+			}
+			peak_heap = Math.min(peak_heap, heap);
+		}
+		double rays_per_sec = tracer.getRayCount() / seconds;
+		double heap_mb = peak_heap / (1024.0 * 1024.0);
+
+		boolean passed = true;
+		double psnr = Double.NaN;
+		File reference = new File(reference_dir, new File(tracer.getImageName()).getName());
+		if (!reference.exists()) {
+			System.out.println(name + ": no reference image " + reference + ", image check skipped");
+		} else {
+			try {
+				psnr = psnr(tracer.toImage(), ImageIO.read(reference));
+			} catch (IOException e) {
+				System.out.println(name + ": error reading reference image " + reference);
+			}
+			if (!(psnr >= min_psnr)) {
+				System.out.println(name + ": FAILED image check, PSNR " + format(psnr) + " dB < " + min_psnr + " dB");
+				passed = false;
+			}
+		}
+
+		System.out.println(name + ": " + format(seconds) + " s (best of " + runs + "), " + format(rays_per_sec) + " rays/s, " +
+						   format(heap_mb) + " MB peak heap, PSNR " + format(psnr) + " dB");
+
+		if (previous != null) {
+			double prev_seconds = Double.parseDouble(previous[3]);
+			double prev_rays_per_sec = Double.parseDouble(previous[4]);
+			double prev_heap_mb = Double.parseDouble(previous[5]);
+			if (seconds > prev_seconds * (1 + margin)) {
+				System.out.println(name + ": FAILED wall time " + format(seconds) + " s, previously " + format(prev_seconds) + " s");
+				passed = false;
+			}
+			if (rays_per_sec < prev_rays_per_sec / (1 + margin)) {
+				System.out.println(name + ": FAILED throughput " + format(rays_per_sec) + " rays/s, previously " + format(prev_rays_per_sec) + " rays/s");
+				passed = false;
+			}
+			if (heap_mb > prev_heap_mb * (1 + margin)) {
+				System.out.println(name + ": FAILED peak heap " + format(heap_mb) + " MB, previously " + format(prev_heap_mb) + " MB");
+				passed = false;
+			}
+		}
+
+		// only passing runs become the baseline for the next comparison
+		if (passed)
+			appendHistory(name, psnr, seconds, rays_per_sec, heap_mb);
+		return passed;
+	}
+
+	// peak signal-to-noise ratio of two 8-bit RGB images in dB,
+	// infinite if they are identical and 0 if their sizes differ
+	static double psnr(BufferedImage a, BufferedImage b) {
+		if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+			return 0;
+		double sum = 0;
+		for (int y=0; y<a.getHeight(); y++) {
+			for (int x=0; x<a.getWidth(); x++) {
+				int p = a.getRGB(x, y);
+				int q = b.getRGB(x, y);
+				for (int shift=0; shift<24; shift+=8) {
+					int d = ((p >> shift) & 0xff) - ((q >> shift) & 0xff);
+					sum += d * d;
+				}
+			}
+		}
+		double mse = sum / (a.getWidth() * a.getHeight() * 3);
+		if (mse == 0)
+			return Double.POSITIVE_INFINITY;
+		return 10 * Math.log10(255.0 * 255.0 / mse);
+	}
+
+	// returns the last recorded entry of each scene
+	private Map<String, String[]> readHistory() {
+		Map<String, String[]> history = new HashMap<String, String[]>();
+		if (!history_file.exists())
+			return history;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(history_file));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String fields[] = line.split(",");
+				if (fields.length < 6 || fields[0].equals("date"))
+					continue;
+				history.put(fields[1], fields);
+			}
+			reader.close();
+		} catch (IOException e) {
+			System.out.println("error reading from file " + history_file);
+		}
+		return history;
+	}
+
+	private void appendHistory(String name, double psnr, double seconds, double rays_per_sec, double heap_mb) {
+		boolean header = !history_file.exists();
+		try {
+			PrintWriter writer = new PrintWriter(new FileWriter(history_file, true));
+			if (header)
+				writer.println("date,scene,psnr,seconds,rays_per_sec,peak_heap_mb");
+			writer.println(new Date().getTime() + "," + name + "," + psnr + "," + seconds + "," + rays_per_sec + "," + heap_mb);
+			writer.close();
+		} catch (IOException e) {
+			System.out.println("error writing to file " + history_file);
+		}
+	}
+
+	private static String format(double v) {
+		return String.format("%.2f", v);
+	}
+}
@@ -0,0 +1,78 @@
+// ShadowMap class
+// a depth map of the scene as seen from a light, used instead of shadow rays for
+// preview quality shadows. each face is scan converted from the light's position by
+// a depth-only Rasterizer, and only the distance from the light to the nearest shape
+// is kept per texel (4 bytes). a spot light uses one face covering its cone, and a
+// point light, or a spot light whose cone is too wide for one face, six faces (a cube
+// map). a point is lit where it is no farther from the light than the stored depth;
+// lookups are filtered with percentage closer filtering (PCF), i.e. the comparison is
+// made at the nearest 3x3 texels and the results are averaged, so shadow edges are
+// softened instead of showing the texels.
+
+import javax.vecmath.*;
+import java.util.*;
+
+public class ShadowMap {
+
+	private Vector3f eye;			// position of the light
+	private Camera faces[];			// one camera per face, all with the same field of view
+	private float depths[][];		// distance to the nearest shape per texel of each face, row by row
+	private int resolution;			// width and height of each face in texels
+	private float texel_size;		// size of a texel at distance 1 from the light
+
+	public ShadowMap(Vector3f _eye, Camera _faces[], float fovy, int _resolution) {
+		eye = new Vector3f(_eye);
+		faces = _faces;
+		resolution = _resolution;
+		texel_size = 2.f * (float)Math.tan(fovy * Math.PI / 360.f) / resolution;
+		depths = new float[faces.length][];
+	}
+
+	// render the depth of every face
+	public void build(Vector<Shape> shapes) {
+		Rasterizer rasterizer = new Rasterizer(resolution, resolution, false);
+		for (int f = 0; f < faces.length; f++) {
+			rasterizer.rasterize(shapes, faces[f]);
+			depths[f] = new float[resolution * resolution];
+			for (int j = 0; j < resolution; j++) {
+				for (int i = 0; i < resolution; i++)
+					depths[f][j * resolution + i] = rasterizer.getDepth(i, j);
+			}
+		}
+	}
+
+	// returns the fraction of the light that reaches point p with surface normal n,
+	// between 0 and 1; points outside every face are lit
+	public float visibility(Vector3f p, Vector3f n) {
+		Vector3f d = new Vector3f();
+		d.sub(p, eye);
+		float dist = d.length();
+		// a surface would shadow itself wherever a texel samples it farther away than p,
+		// which is by up to the texel size times the slope of the surface seen from the
+		// light, for each of the texels the filter reaches; depths are compared with
+		// an offset that large
+		float texel = dist * texel_size;
+		float cos = Math.max(Math.abs(n.dot(d)) / dist, 0.1f);
+		float slope = (float)Math.sqrt(1.f - cos * cos) / cos;
+		float bias = texel * (1.f + 1.5f * slope) + 0.001f * dist;
+		Vector2f s = new Vector2f();
+		for (int f = 0; f < faces.length; f++) {
+			if (!faces[f].project(p, s) || s.x < 0.f || s.x > 1.f || s.y < 0.f || s.y > 1.f)
+				continue;
+			// texel i holds the depth seen at x = i / resolution
+			int x = Math.round(s.x * resolution);
+			int y = Math.round(s.y * resolution);
+			int lit = 0;
+			for (int dy = -1; dy <= 1; dy++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					int i = Math.min(Math.max(x + dx, 0), resolution - 1);
+					int j = Math.min(Math.max(y + dy, 0), resolution - 1);
+					if (dist - bias <= depths[f][j * resolution + i])
+						lit++;
+				}
+			}
+			return lit / 9.f;
+		}
+		return 1.f;
+	}
+}
@@ -1,4 +1,5 @@
 
+import javax.vecmath.*;
 
 public abstract class Shape {
 
@@ -15,5 +16,37 @@ public abstract class Shape {
 		return (hit(ray, tmin, tmax) == null) ? false : true;
 	}
 
+	// each shape can also report the pixel rectangle (xmin, ymin, xmax, ymax)
+	// its projection covers, which the rasterizer uses to limit the pixels tested
+	// by default, we assume the shape may cover the whole image
+	public boolean screenBounds(Camera camera, int width, int height, int[] bounds)
+	{
+		bounds[0] = 0;
+		bounds[1] = 0;
+		bounds[2] = width - 1;
+		bounds[3] = height - 1;
+		return true;
+	}
+
+	// each shape also draws itself into the visibility buffer of a rasterizer
+	// by default, we cast a camera ray through every pixel of its screen bounds
+	public void rasterize(Rasterizer rasterizer, int id)
+	{
+		rasterizer.castRays(this, id);
+	}
+
+	// each shape can also report an axis-aligned box (min, max) that contains it,
+	// which the BVH uses to sort shapes into a tree
+	// by default, we assume the shape is unbounded and return false
+	public boolean bounds(Vector3f min, Vector3f max)
+	{
+		return false;
+	}
+
+	// animated shapes are placed by a transform of their rest pose, i.e. the shape as
+	// it was given in the scene file. the transform is a rotation and uniform scale
+	// followed by a translation; each call replaces the previous transform
+	abstract public void setTransform(Matrix4f m);
+
 	protected Material material;	// material of each shape
 }
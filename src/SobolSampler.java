@@ -0,0 +1,51 @@
+// SobolSampler class
+// generates samples from the Sobol sequence, using the Joe-Kuo direction numbers
+// for the first eight dimensions. each pixel and dimension is scrambled by a random
+// digital shift (xor), which keeps the sequence stratified while decorrelating pixels.
+
+public class SobolSampler extends Sampler {
+
+	// primitive polynomial degree s, coefficients a, and initial numbers m
+	// of dimensions 2 to 8; dimension 1 is the van der Corput sequence
+	private static final int S[] = {1, 2, 3, 3, 4, 4, 5};
+	private static final int A[] = {0, 1, 1, 2, 1, 4, 2};
+	private static final int M[][] = {{1}, {1, 3}, {1, 3, 1}, {1, 1, 1}, {1, 1, 3, 3}, {1, 3, 5, 13}, {1, 1, 5, 5, 17}};
+
+	private static final int DIRECTIONS[][] = new int[S.length + 1][32];
+	static {
+		for (int k = 0; k < 32; k++)
+			DIRECTIONS[0][k] = 1 << (31 - k);
+		for (int d = 1; d <= S.length; d++) {
+			int s = S[d-1], a = A[d-1];
+			int v[] = DIRECTIONS[d];
+			for (int k = 0; k < 32; k++) {
+				if (k < s) {
+					v[k] = M[d-1][k] << (31 - k);
+				} else {
+					v[k] = v[k-s] ^ (v[k-s] >>> s);
+					for (int l = 1; l < s; l++) {
+						if (((a >>> (s - 1 - l)) & 1) != 0)
+							v[k] ^= v[k-l];
+					}
+				}
+			}
+		}
+	}
+
+	public SobolSampler(int _spp) {
+		spp = _spp;
+	}
+
+	public float get1D() {
+		int d = dimension++;
+		if (d >= DIRECTIONS.length)
+			return toFloat(hash(px, py, index, d));	// past the table, pad with random values
+		int bits = 0;
+		int v[] = DIRECTIONS[d];
+		for (int k = 0, i = index; i != 0; k++, i >>>= 1) {
+			if ((i & 1) != 0)
+				bits ^= v[k];
+		}
+		return toFloat(bits ^ hash(px, py, d, 0x50b0));
+	}
+}
@@ -6,6 +6,8 @@ import javax.vecmath.*;
 public class Sphere extends Shape {
 	private Vector3f center;	// center of sphere
 	private float radius;		// radius of sphere
+	private Vector3f rest_center = null;	// center and radius as given, kept once the sphere is animated
+	private float rest_radius;
 
 	public Sphere() {
 	}
@@ -42,4 +44,36 @@ public class Sphere extends Shape {
                 rec.normal.normalize();			// normal should be normalized
 		return rec;
 	}
+
+	public boolean screenBounds(Camera camera, int width, int height, int[] bounds) {
+		/* the sphere is bounded by the quads of its axis-aligned bounding box */
+		Vector3f[] corners = new Vector3f[8];
+		for (int i = 0; i < 8; i++) {
+			corners[i] = new Vector3f(center.x + ((i & 1) == 0 ? -radius : radius),
+									  center.y + ((i & 2) == 0 ? -radius : radius),
+									  center.z + ((i & 4) == 0 ? -radius : radius));
+		}
+		return camera.screenBounds(corners, width, height, bounds);
+	}
+
+	public void rasterize(Rasterizer rasterizer, int id) {
+		rasterizer.drawSphere(this, center, radius, id);
+	}
+
+	public boolean bounds(Vector3f min, Vector3f max) {
+		min.set(center.x - radius, center.y - radius, center.z - radius);
+		max.set(center.x + radius, center.y + radius, center.z + radius);
+		return true;
+	}
+
+	public void setTransform(Matrix4f m) {
+		if (rest_center == null) {
+			rest_center = new Vector3f(center);
+			rest_radius = radius;
+		}
+		Point3f c = new Point3f(rest_center);
+		m.transform(c);
+		center = new Vector3f(c);
+		radius = rest_radius * m.getScale();
+	}
 }
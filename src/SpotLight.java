@@ -33,11 +33,53 @@ public class SpotLight extends Light
 		return lightIntens;
 	}
 
+	// one view from the light towards its target, wide enough to hold the cone, or a
+	// cube map like a point light's when the cone is too wide for a single view
+	protected Camera[] shadowCameras()
+	{
+		if (coneFovy() > MAX_FOVY)
+			return cubeCameras(from);
+		Vector3f up = (Math.abs(dir.y) > 0.99f) ? new Vector3f(1, 0, 0) : new Vector3f(0, 1, 0);
+		return new Camera[] {new Camera(from, to, up, coneFovy(), 1.f)};
+	}
+
+	protected float shadowFovy()
+	{
+		return (coneFovy() > MAX_FOVY) ? 90.f : coneFovy();
+	}
+
+	// the cone's full angle, a little wider so its edge is inside the map
+	private float coneFovy()
+	{
+		return (float)Math.toDegrees(2.0 * Math.acos(spot_cos)) * 1.05f;
+	}
+
+	public void setTransform(Matrix4f m)
+	{
+		if (rest_from == null) {
+			rest_from = new Vector3f(from);
+			rest_to = new Vector3f(to);
+		}
+		Point3f f = new Point3f(rest_from);
+		Point3f t = new Point3f(rest_to);
+		m.transform(f);
+		m.transform(t);
+		Vector3f d = new Vector3f(f);
+		d.sub(t);
+		d.normalize();
+		from = new Vector3f(f);
+		to = new Vector3f(t);
+		dir = d;
+	}
+
+	private static final float MAX_FOVY = 170.f;	// widest single view for a shadow map
+
 	private Vector3f from;
 	private Vector3f to;
 	private float spot_cos;
 	private float spot_exp;
 	private Vector3f dir;
+	private Vector3f rest_from = null, rest_to;	// as given, kept once the light is animated
 }
 
 
@@ -0,0 +1,64 @@
+// StratifiedSampler class
+// generates jittered samples: each pair of dimensions is divided into an
+// xsample x ysample grid, and each sample falls at a random position in its own cell.
+// the cells are shuffled differently for each pair of dimensions and each pixel,
+// so that the pixel, lens and light samples are not correlated with each other.
+
+import javax.vecmath.*;
+
+public class StratifiedSampler extends Sampler {
+
+	private int xsample, ysample;	// grid size
+
+	public StratifiedSampler(int _xsample, int _ysample) {
+		xsample = _xsample;
+		ysample = _ysample;
+		spp = xsample * ysample;
+	}
+
+	public float get1D() {
+		int d = dimension++;
+		int cell = permute(index, spp, hash(px, py, d, 0x1d));
+		return (cell + toFloat(hash(px, py, index, d))) / spp;
+	}
+
+	public void get2D(Vector2f out) {
+		int d = dimension;
+		dimension += 2;
+		int cell = permute(index, spp, hash(px, py, d, 0x2d));
+		out.x = ((cell % xsample) + toFloat(hash(px, py, index, d))) / xsample;
+		out.y = ((cell / xsample) + toFloat(hash(px, py, index, d + 1))) / ysample;
+	}
+
+	// returns element i of a random permutation of 0..n-1 selected by seed
+	// (Kensler, "Correlated Multi-Jittered Sampling")
+	private static int permute(int i, int n, int seed) {
+		int w = n - 1;
+		w |= w >>> 1;
+		w |= w >>> 2;
+		w |= w >>> 4;
+		w |= w >>> 8;
+		w |= w >>> 16;
+		do {
+			i ^= seed;
+			i *= 0xe170893d;
+			i ^= seed >>> 16;
+			i ^= (i & w) >>> 4;
+			i ^= seed >>> 8;
+			i *= 0x0929eb3f;
+			i ^= seed >>> 23;
+			i ^= (i & w) >>> 1;
+			i *= 1 | seed >>> 27;
+			i *= 0x6935fa69;
+			i ^= (i & w) >>> 11;
+			i *= 0x74dcb303;
+			i ^= (i & w) >>> 2;
+			i *= 0x9e501cc3;
+			i ^= (i & w) >>> 2;
+			i *= 0xc860a3df;
+			i &= w;
+			i ^= i >>> 5;
+		} while (i >= n);
+		return Integer.remainderUnsigned(i + seed, n);
+	}
+}
@@ -0,0 +1,325 @@
+// Texture class
+// defines a mip-mapped image texture
+// on first use, the image is decoded once and its mipmap levels are written, split
+// into tiles, to a mipmap file next to it (or to a temporary file if that directory
+// cannot be written), which later runs reuse until the image changes. each level is
+// averaged down from the one above it, weighting texels by the image pixels they cover.
+// tiles are then read from the file on demand and kept in a shared TileCache, so the
+// memory used by textures stays within the cache capacity; reads use positional file
+// access, so render threads can load tiles in parallel.
+//
+// mipmap file layout, all values big-endian:
+//   header: magic, version, width, height, tile size
+//   tiles: level by level, row by row, TILE x TILE x 3 floats each (linear rgb,
+//          rows from the top of the image), padded where a tile passes the level's edge
+
+import javax.vecmath.*;
+import javax.imageio.*;
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class Texture {
+
+	private static final int TILE = 64;	// tile size in texels
+	private static final int TILE_BYTES = TILE * TILE * 3 * 4;
+	private static final int MAGIC = 0x52544d50;	// "RTMP"
+	private static final int VERSION = 1;
+	private static final int HEADER = 32;		// header size in bytes
+
+	private static float linear[] = null;	// 8-bit color to linear value
+
+	private String filename;
+	private TileCache cache;
+	private int cache_id;				// owner id of the tiles in the cache
+	private volatile FileChannel channel = null;	// mipmap file, opened on first use
+	private int width, height;			// size of the full resolution image
+	private int levels;					// number of mipmap levels
+	private long level_offset[];		// file offset of the first tile of each level
+
+	public Texture(String _filename, TileCache _cache) {
+		filename = _filename;
+		cache = _cache;
+		cache_id = cache.register();
+	}
+
+	// the tile fetched last by a lookup, so the texels of one lookup that share a tile
+	// go through the cache once
+	private static class Fetch {
+		long key = -1;
+		float tile[];
+	}
+
+	// open the mipmap file, building it first if it is missing or older than the image
+	private synchronized void open() {
+		if (channel != null)
+			return;
+		File image = new File(filename);
+		File mip = new File(filename + ".mip");
+		try {
+			synchronized (Texture.class) {
+				// textures sharing an image share its mipmap file
+				if (!readHeader(mip, image)) {
+					try {
+						build(mip);
+					} catch (IOException e) {
+						mip = File.createTempFile("texture", ".mip");
+						mip.deleteOnExit();
+						build(mip);
+					}
+				}
+			}
+			channel = FileChannel.open(mip.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			System.out.println("error reading from file " + filename);
+			System.exit(0);
+		}
+	}
+
+	// read the size of the image from an up to date mipmap file; returns false if
+	// there is none
+	private boolean readHeader(File mip, File image) {
+		if (!mip.exists() || mip.lastModified() < image.lastModified())
+			return false;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(mip))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return false;
+			setSize(in.readInt(), in.readInt());
+			return in.readInt() == TILE && mip.length() >= level_offset[levels];
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void setSize(int _width, int _height) {
+		width = _width;
+		height = _height;
+		levels = 1;
+		while ((width >> levels) > 0 || (height >> levels) > 0)
+			levels++;
+		level_offset = new long[levels + 1];
+		level_offset[0] = HEADER;
+		for (int l = 0; l < levels; l++)
+			level_offset[l+1] = level_offset[l] + (long)tilesX(l) * tilesY(l) * TILE_BYTES;
+	}
+
+	// decode the image and write all of its levels to the mipmap file; the header is
+	// written last, so a file left by an interrupted build is never used
+	private void build(File mip) throws IOException {
+		BufferedImage image = ImageIO.read(new File(filename));
+		if (image == null)
+			throw new FileNotFoundException("unsupported image format");
+		setSize(image.getWidth(), image.getHeight());
+		System.out.println("building mipmaps of " + filename);
+
+		try (FileChannel out = FileChannel.open(mip.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+												StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// level 0 comes from the image
+			int rgb[] = new int[TILE * TILE];
+			for (int ty = 0; ty < tilesY(0); ty++) {
+				for (int tx = 0; tx < tilesX(0); tx++) {
+					int x0 = tx * TILE, y0 = ty * TILE;
+					int w = Math.min(TILE, width - x0), h = Math.min(TILE, height - y0);
+					image.getRGB(x0, y0, w, h, rgb, 0, TILE);
+					float[] tile = new float[TILE * TILE * 3];
+					for (int y = 0; y < h; y++) {
+						for (int x = 0; x < w; x++) {
+							int c = rgb[y * TILE + x];
+							int index = (y * TILE + x) * 3;
+							tile[index] = toLinear((c >> 16) & 0xff);
+							tile[index+1] = toLinear((c >> 8) & 0xff);
+							tile[index+2] = toLinear(c & 0xff);
+						}
+					}
+					writeTile(out, 0, tx, ty, tile);
+				}
+			}
+			image = null;
+
+			// each further level from the one above it
+			for (int l = 1; l < levels; l++) {
+				for (int ty = 0; ty < tilesY(l); ty++) {
+					// the tiles of the level above this row of tiles covers
+					Map<Integer, float[]> above = new HashMap<Integer, float[]> ();
+					for (int tx = 0; tx < tilesX(l); tx++)
+						writeTile(out, l, tx, ty, downsample(out, l, tx, ty, above));
+				}
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(width);
+			header.putInt(height);
+			header.putInt(TILE);
+			header.rewind();
+			out.write(header, 0);
+		}
+	}
+
+	// build tile (tx,ty) of level l by averaging the texels of level l-1 each of its
+	// texels covers, weighted by the image pixels they cover, so every texel is the
+	// average of its image pixels. the last texel of a level also covers the pixels
+	// its size rounds off
+	private float[] downsample(FileChannel out, int l, int tx, int ty, Map<Integer, float[]> above) throws IOException {
+		int w = levelWidth(l), h = levelHeight(l);
+		int pw = levelWidth(l - 1), ph = levelHeight(l - 1);
+		float[] tile = new float[TILE * TILE * 3];
+		for (int y = ty * TILE; y < Math.min((ty + 1) * TILE, h); y++) {
+			int py1 = (y == h - 1) ? ph : Math.min(2 * y + 2, ph);
+			for (int x = tx * TILE; x < Math.min((tx + 1) * TILE, w); x++) {
+				int px1 = (x == w - 1) ? pw : Math.min(2 * x + 2, pw);
+				float r = 0, g = 0, b = 0, n = 0;
+				for (int py = 2 * y; py < py1; py++) {
+					for (int px = 2 * x; px < px1; px++) {
+						int key = (py / TILE) * tilesX(l - 1) + px / TILE;
+						float[] source = above.get(key);
+						if (source == null) {
+							source = readTile(out, l - 1, px / TILE, py / TILE);
+							above.put(key, source);
+						}
+						float weight = (float)pixels(l - 1, px, width) * pixels(l - 1, py, height);
+						int index = ((py % TILE) * TILE + (px % TILE)) * 3;
+						r += weight * source[index];
+						g += weight * source[index+1];
+						b += weight * source[index+2];
+						n += weight;
+					}
+				}
+				int index = ((y % TILE) * TILE + (x % TILE)) * 3;
+				tile[index] = r / n;
+				tile[index+1] = g / n;
+				tile[index+2] = b / n;
+			}
+		}
+		return tile;
+	}
+
+	// number of image pixels texel x of level l covers along an axis of size pixels
+	private static int pixels(int l, int x, int size) {
+		int texels = Math.max(size >> l, 1);
+		int end = (x == texels - 1) ? size : ((x + 1) << l);
+		return end - (x << l);
+	}
+
+	private void writeTile(FileChannel out, int l, int tx, int ty, float[] tile) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(TILE_BYTES);
+		buffer.asFloatBuffer().put(tile);
+		long pos = tilePosition(l, tx, ty);
+		while (buffer.hasRemaining())
+			pos += out.write(buffer, pos);
+	}
+
+	private float[] readTile(FileChannel in, int l, int tx, int ty) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(TILE_BYTES);
+		long pos = tilePosition(l, tx, ty);
+		while (buffer.hasRemaining()) {
+			int n = in.read(buffer, pos);
+			if (n < 0)
+				throw new EOFException();
+			pos += n;
+		}
+		buffer.rewind();
+		float[] tile = new float[TILE * TILE * 3];
+		buffer.asFloatBuffer().get(tile);
+		return tile;
+	}
+
+	private long tilePosition(int l, int tx, int ty) {
+		return level_offset[l] + ((long)ty * tilesX(l) + tx) * TILE_BYTES;
+	}
+
+	private int tilesX(int level) { return (levelWidth(level) + TILE - 1) / TILE; }
+
+	private int tilesY(int level) { return (levelHeight(level) + TILE - 1) / TILE; }
+
+	// filtered texture color at (u,v), with the texture repeating outside [0,1]
+	// footprint is the width of the area to filter, in uv units
+	public Color3f lookup(float u, float v, float footprint) {
+		if (channel == null)
+			open();
+		float lod = (footprint > 0.f) ? (float)(Math.log(footprint * Math.max(width, height)) / Math.log(2)) : 0.f;
+		lod = Math.min(Math.max(lod, 0.f), levels - 1);
+		int level = (int)lod;
+		float f = lod - level;
+
+		// trilinear filtering: blend bilinear lookups of the two nearest levels
+		Fetch fetch = new Fetch();
+		Color3f color = bilinear(level, u, v, fetch);
+		if (f > 0.f && level + 1 < levels) {
+			Color3f next = bilinear(level + 1, u, v, fetch);
+			color.scale(1.f - f);
+			color.scaleAdd(f, next, color);
+		}
+		return color;
+	}
+
+	private Color3f bilinear(int level, float u, float v, Fetch fetch) {
+		int w = levelWidth(level);
+		int h = levelHeight(level);
+		// texel centers are at half-integer positions; image rows start at the top
+		float x = (u - (float)Math.floor(u)) * w - 0.5f;
+		float y = (1.f - (v - (float)Math.floor(v))) * h - 0.5f;
+		int x0 = (int)Math.floor(x);
+		int y0 = (int)Math.floor(y);
+		float fx = x - x0;
+		float fy = y - y0;
+		Color3f color = new Color3f();
+		addTexel(color, level, x0, y0, (1.f - fx) * (1.f - fy), fetch);
+		addTexel(color, level, x0 + 1, y0, fx * (1.f - fy), fetch);
+		addTexel(color, level, x0, y0 + 1, (1.f - fx) * fy, fetch);
+		addTexel(color, level, x0 + 1, y0 + 1, fx * fy, fetch);
+		return color;
+	}
+
+	private void addTexel(Color3f color, int level, int x, int y, float weight, Fetch fetch) {
+		if (weight == 0.f)
+			return;
+		int w = levelWidth(level);
+		int h = levelHeight(level);
+		x = ((x % w) + w) % w;
+		y = ((y % h) + h) % h;
+		float[] tile = getTile(level, x / TILE, y / TILE, fetch);
+		int index = ((y % TILE) * TILE + (x % TILE)) * 3;
+		color.x += weight * tile[index];
+		color.y += weight * tile[index+1];
+		color.z += weight * tile[index+2];
+	}
+
+	private int levelWidth(int level) { return Math.max(width >> level, 1); }
+
+	private int levelHeight(int level) { return Math.max(height >> level, 1); }
+
+	private float[] getTile(int level, int tx, int ty, Fetch fetch) {
+		long key = TileCache.key(cache_id, level, (long)ty * tilesX(level) + tx);
+		if (key == fetch.key)
+			return fetch.tile;
+		float[] tile = cache.get(key);
+		if (tile == null) {
+			try {
+				tile = readTile(channel, level, tx, ty);
+			} catch (IOException e) {
+				System.out.println("error reading from file " + filename + ".mip");
+				System.exit(0);
+			}
+			cache.put(key, tile);
+		}
+		fetch.key = key;
+		fetch.tile = tile;
+		return tile;
+	}
+
+	// undo the 2.2 gamma that writeImage applies, so textures shade in linear space
+	private static float toLinear(int c) {
+		if (linear == null) {
+			float table[] = new float[256];
+			for (int k = 0; k < 256; k++)
+				table[k] = (float)Math.pow(k / 255.f, 2.2f);
+			linear = table;
+		}
+		return linear[c];
+	}
+}
@@ -0,0 +1,76 @@
+// TileCache class
+// a size-capped, least-recently-used cache of float tiles: texture tiles shared by all
+// textures, keyed by texture, mipmap level and tile, or mesh clusters of paged meshes,
+// keyed by mesh and cluster. each texture or mesh registers for an owner id, and keys
+// pack the owner, level and tile index into a long (see key), so lookups do not build
+// strings. all methods are synchronized so that render threads can share one cache.
+
+import java.util.*;
+
+public class TileCache {
+
+	private long capacity;		// maximum total size of cached tiles in bytes
+	private long size;			// current total size of cached tiles in bytes
+	private long hits, misses;	// lookup statistics
+	private int owners = 0;		// owner ids handed out
+
+	// access-ordered map, so iteration starts at the least recently used tile
+	private LinkedHashMap<Long, float[]> tiles = new LinkedHashMap<Long, float[]> (16, 0.75f, true);
+
+	public TileCache(long _capacity) {
+		capacity = _capacity;
+	}
+
+	// returns a new owner id, for the keys of a texture or mesh
+	public synchronized int register() {
+		return owners++;
+	}
+
+	// key of tile index of level of owner: 20 bits of owner, 6 of level, 38 of index
+	public static long key(int owner, int level, long index) {
+		return ((long)owner << 44) | ((long)level << 38) | index;
+	}
+
+	public synchronized void setCapacity(long _capacity) {
+		capacity = _capacity;
+		evict();
+	}
+
+	// returns the cached tile, or null if it has to be loaded
+	public synchronized float[] get(long key) {
+		float[] tile = tiles.get(key);
+		if (tile != null)
+			hits++;
+		else
+			misses++;
+		return tile;
+	}
+
+	public synchronized void put(long key, float[] tile) {
+		float[] old = tiles.put(key, tile);
+		if (old != null)
+			size -= bytes(old);
+		size += bytes(tile);
+		evict();
+	}
+
+	// drop least recently used tiles until the cache fits its capacity,
+	// always keeping the most recent tile so a lookup can complete
+	private void evict() {
+		Iterator<float[]> it = tiles.values().iterator();
+		while (size > capacity && tiles.size() > 1 && it.hasNext()) {
+			size -= bytes(it.next());
+			it.remove();
+		}
+	}
+
+	private static long bytes(float[] tile) {
+		return tile.length * 4L;
+	}
+
+	public synchronized long getHits() { return hits; }
+
+	public synchronized long getMisses() { return misses; }
+
+	public synchronized long getSize() { return size; }
+}
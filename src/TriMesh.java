@@ -9,9 +9,13 @@ public class TriMesh {
 
 	public Vector3f[] verts = null;
 	public Vector3f[] normals = null;
+	public Vector2f[] uvs = null;
 	public int[] faces = null;
 	public String type;
 
+	public TriMesh[] levels = null;	// level-of-detail chain, levels[0] is the mesh itself
+	public int resolution = 0;		// clustering grid resolution this mesh was built with, 0 if exact
+
 	public void load(String filename) {
 		File file = null;
 		Scanner scanner = null;
@@ -35,16 +39,25 @@ public class TriMesh {
 		int nfaces = scanner.nextInt();
 		verts = new Vector3f[nverts];
 		faces = new int[nfaces*3];
-		if (type.compareToIgnoreCase("triangle_n")==0) {
+		// triangle_n and triangle_nt vertices have normals, triangle_t and triangle_nt texture coordinates
+		boolean has_normals = type.compareToIgnoreCase("triangle_n")==0 || type.compareToIgnoreCase("triangle_nt")==0;
+		boolean has_uvs = type.compareToIgnoreCase("triangle_t")==0 || type.compareToIgnoreCase("triangle_nt")==0;
+		if (has_normals) {
 			normals = new Vector3f[nverts];
 		}
+		if (has_uvs) {
+			uvs = new Vector2f[nverts];
+		}
 
 		int i;
 		for (i=0; i<nverts; i++) {
 			verts[i] = new Vector3f(scanner.nextFloat(), scanner.nextFloat(), scanner.nextFloat());
-			if (type.compareToIgnoreCase("triangle_n")==0) {
+			if (has_normals) {
 				normals[i] = new Vector3f(scanner.nextFloat(), scanner.nextFloat(), scanner.nextFloat());
 			}
+			if (has_uvs) {
+				uvs[i] = new Vector2f(scanner.nextFloat(), scanner.nextFloat());
+			}
 		}
 		int idx0, idx1, idx2;
 		for (i=0; i<nfaces; i++) {
@@ -60,4 +73,159 @@ public class TriMesh {
 		scanner.close();
 	}
 
+	// compute the axis-aligned bounding box of the vertices
+	public void bounds(Vector3f min, Vector3f max) {
+		min.set(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+		max.set(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+		for (int i=0; i<verts.length; i++) {
+			min.x = Math.min(min.x, verts[i].x);
+			min.y = Math.min(min.y, verts[i].y);
+			min.z = Math.min(min.z, verts[i].z);
+			max.x = Math.max(max.x, verts[i].x);
+			max.y = Math.max(max.y, verts[i].y);
+			max.z = Math.max(max.z, verts[i].z);
+		}
+	}
+
+	// simplify the mesh by vertex clustering:
+	// the bounding box is divided into a grid with res cells along its longest axis,
+	// all vertices in a cell are merged into their average, and faces that collapse
+	// (two or more corners in the same cell) are dropped
+	public TriMesh simplify(int res) {
+		Vector3f min = new Vector3f();
+		Vector3f max = new Vector3f();
+		bounds(min, max);
+		float extent = Math.max(max.x - min.x, Math.max(max.y - min.y, max.z - min.z));
+		float cell = (extent > 0.f) ? extent / res : 1.f;
+
+		HashMap<Long, Integer> clusters = new HashMap<Long, Integer>();
+		int remap[] = new int[verts.length];
+		Vector<Vector3f> sum_verts = new Vector<Vector3f>();
+		Vector<Vector3f> sum_normals = new Vector<Vector3f>();
+		Vector<Vector2f> sum_uvs = new Vector<Vector2f>();
+		Vector<Integer> counts = new Vector<Integer>();
+		int i;
+		for (i=0; i<verts.length; i++) {
+			long cx = Math.min((int)((verts[i].x - min.x) / cell), res - 1);
+			long cy = Math.min((int)((verts[i].y - min.y) / cell), res - 1);
+			long cz = Math.min((int)((verts[i].z - min.z) / cell), res - 1);
+			Long key = (cx << 42) | (cy << 21) | cz;
+			Integer idx = clusters.get(key);
+			if (idx == null) {
+				idx = sum_verts.size();
+				clusters.put(key, idx);
+				sum_verts.add(new Vector3f());
+				sum_normals.add(new Vector3f());
+				sum_uvs.add(new Vector2f());
+				counts.add(0);
+			}
+			sum_verts.get(idx).add(verts[i]);
+			if (normals != null)
+				sum_normals.get(idx).add(normals[i]);
+			if (uvs != null)
+				sum_uvs.get(idx).add(uvs[i]);
+			counts.set(idx, counts.get(idx) + 1);
+			remap[i] = idx;
+		}
+
+		TriMesh mesh = new TriMesh();
+		mesh.type = type;
+		mesh.resolution = res;
+		mesh.verts = new Vector3f[sum_verts.size()];
+		if (normals != null)
+			mesh.normals = new Vector3f[sum_verts.size()];
+		if (uvs != null)
+			mesh.uvs = new Vector2f[sum_verts.size()];
+		for (i=0; i<mesh.verts.length; i++) {
+			mesh.verts[i] = sum_verts.get(i);
+			mesh.verts[i].scale(1.f / counts.get(i));
+			if (normals != null) {
+				mesh.normals[i] = sum_normals.get(i);
+				if (mesh.normals[i].lengthSquared() > 0.f)
+					mesh.normals[i].normalize();
+			}
+			if (uvs != null) {
+				mesh.uvs[i] = sum_uvs.get(i);
+				mesh.uvs[i].scale(1.f / counts.get(i));
+			}
+		}
+
+		int kept[] = new int[faces.length];
+		int nkept = 0;
+		int idx0, idx1, idx2;
+		for (i=0; i<faces.length/3; i++) {
+			idx0 = remap[faces[i*3+0]];
+			idx1 = remap[faces[i*3+1]];
+			idx2 = remap[faces[i*3+2]];
+			if (idx0 == idx1 || idx1 == idx2 || idx2 == idx0)
+				continue;
+			kept[nkept++] = idx0;
+			kept[nkept++] = idx1;
+			kept[nkept++] = idx2;
+		}
+		mesh.faces = Arrays.copyOf(kept, nkept);
+		return mesh;
+	}
+
+	// build the level-of-detail chain by halving the clustering resolution
+	// until it stops removing faces or the mesh becomes too coarse
+	public void buildLevels() {
+		Vector<TriMesh> chain = new Vector<TriMesh>();
+		chain.add(this);
+		TriMesh last = this;
+		for (int res = 256; res >= 4; res /= 2) {
+			TriMesh level = simplify(res);
+			if (level.faces.length == 0)
+				break;
+			if (level.faces.length >= last.faces.length)
+				continue;
+			chain.add(level);
+			last = level;
+		}
+		levels = chain.toArray(new TriMesh[chain.size()]);
+	}
+
+	// compute the size in pixels of the mesh bounding box projected on the image, not
+	// clipped to the image, so a mesh partly in view is sized as a whole
+	// returns Integer.MAX_VALUE if the box is not entirely in front of the camera or is
+	// outside the image: such a mesh keeps its full detail, as it may still be seen in
+	// shadows, reflections and refractions, or come into view as the camera moves
+	public int screenSize(Camera camera, int width, int height) {
+		Vector3f min = new Vector3f();
+		Vector3f max = new Vector3f();
+		bounds(min, max);
+		Vector3f[] corners = new Vector3f[8];
+		for (int i=0; i<8; i++) {
+			corners[i] = new Vector3f(((i & 1) == 0) ? min.x : max.x,
+									  ((i & 2) == 0) ? min.y : max.y,
+									  ((i & 4) == 0) ? min.z : max.z);
+		}
+		float xmin = Float.MAX_VALUE, ymin = Float.MAX_VALUE;
+		float xmax = -Float.MAX_VALUE, ymax = -Float.MAX_VALUE;
+		Vector2f s = new Vector2f();
+		for (int i=0; i<8; i++) {
+			if (!camera.project(corners[i], s))
+				return Integer.MAX_VALUE;
+			xmin = Math.min(xmin, s.x * width);
+			ymin = Math.min(ymin, s.y * height);
+			xmax = Math.max(xmax, s.x * width);
+			ymax = Math.max(ymax, s.y * height);
+		}
+		if (xmax < 0.f || xmin > width || ymax < 0.f || ymin > height)
+			return Integer.MAX_VALUE;
+		return (int)Math.ceil(Math.max(xmax - xmin, ymax - ymin)) + 1;
+	}
+
+	// select the coarsest level whose clustering cell projects to at most
+	// tolerance pixels, given the mesh covers pixels pixels on the image
+	public TriMesh selectLevel(int pixels, float tolerance) {
+		if (levels == null)
+			return this;
+		TriMesh selected = levels[0];
+		for (int i=1; i<levels.length; i++) {
+			if ((float)pixels / levels[i].resolution <= tolerance)
+				selected = levels[i];
+		}
+		return selected;
+	}
 }
@@ -6,6 +6,9 @@ import javax.vecmath.*;
 public class Triangle extends Shape {
 	private Vector3f p0, p1, p2;	// three vertices make a triangle
 	private Vector3f n0, n1, n2;	// normal at each vertex
+	private Vector2f t0, t1, t2;	// texture coordinates at each vertex, null if none
+	private float uv_scale;			// ratio of uv length to surface length
+	private Vector3f rest[] = null;	// p0, p1, p2, n0, n1, n2 as given, kept once the triangle is animated
 
 	public Triangle() {
 	}
@@ -38,6 +41,26 @@ public class Triangle extends Shape {
 	}
         
         
+	public void setTexCoords(Vector2f _t0, Vector2f _t1, Vector2f _t2) {
+		t0 = new Vector2f(_t0);
+		t1 = new Vector2f(_t1);
+		t2 = new Vector2f(_t2);
+		updateUvScale();
+	}
+
+	// sqrt of the uv area over the surface area
+	private void updateUvScale() {
+		Vector3f v1 = new Vector3f();
+		Vector3f v2 = new Vector3f();
+		Vector3f cross = new Vector3f();
+		v1.sub(p1, p0);
+		v2.sub(p2, p0);
+		cross.cross(v1, v2);
+		float area = cross.length();
+		float uv_area = Math.abs((t1.x - t0.x) * (t2.y - t0.y) - (t2.x - t0.x) * (t1.y - t0.y));
+		uv_scale = (area > 0.f) ? (float)Math.sqrt(uv_area / area) : 0.f;
+	}
+
 	public HitRecord hit(Ray ray, float tmin, float tmax) {
                 Vector3f origin = ray.getOrigin();
 		Vector3f direction = ray.getDirection();
@@ -57,6 +80,77 @@ public class Triangle extends Shape {
                 rec.material = material;		// material
                 rec.normal = new Vector3f(n0.x + (beta * n1.x) + (gamma * n2.x), n0.y + (beta * n1.y) + (gamma * n2.y), n0.z + (beta * n1.z) + (gamma * n2.z));					// normal at the hit point
                 rec.normal.normalize();			// normal should be normalized
+                if (t0 != null) {
+                    float alpha = 1.f - beta - gamma;
+                    rec.uv = new Vector2f(alpha * t0.x + beta * t1.x + gamma * t2.x, alpha * t0.y + beta * t1.y + gamma * t2.y);
+                    rec.uv_scale = uv_scale;
+                }
                 return rec;
         }
+
+	// intersect a ray with the triangle whose corners are the 9 floats of v from offset p,
+	// for the meshes that store their triangles packed in arrays: solves
+	// o + t*d = p0 + beta*(p1-p0) + gamma*(p2-p0) with Cramer's rule, the same system
+	// hit solves with Matrix3f determinants. returns t and sets bary to (beta, gamma),
+	// or returns Float.MAX_VALUE if the ray misses the triangle within [tmin, tmax]
+	static float intersect(float v[], int p, Ray ray, float tmin, float tmax, float bary[]) {
+		Vector3f origin = ray.o;
+		Vector3f direction = ray.d;
+		float a = v[p] - v[p+3], b = v[p+1] - v[p+4], c = v[p+2] - v[p+5];
+		float d = v[p] - v[p+6], e = v[p+1] - v[p+7], g = v[p+2] - v[p+8];
+		float j = v[p] - origin.x, k = v[p+1] - origin.y, l = v[p+2] - origin.z;
+		float bg_ec = b * g - e * c;
+		float yg_ez = direction.y * g - e * direction.z;
+		float yc_bz = direction.y * c - b * direction.z;
+		float det = direction.x * bg_ec - a * yg_ez + d * yc_bz;
+		if (det == 0.f) return Float.MAX_VALUE;
+		float kg_el = k * g - e * l;
+		float kc_bl = k * c - b * l;
+		float t = (j * bg_ec - a * kg_el + d * kc_bl) / det;
+		if (t < tmin || t > tmax) return Float.MAX_VALUE;
+		float yl_kz = direction.y * l - k * direction.z;
+		float beta = (direction.x * kg_el - j * yg_ez + d * yl_kz) / det;
+		if (beta < 0) return Float.MAX_VALUE;
+		float gamma = (-direction.x * kc_bl - a * yl_kz + j * yc_bz) / det;
+		if (gamma < 0 || beta + gamma > 1) return Float.MAX_VALUE;
+		bary[0] = beta;
+		bary[1] = gamma;
+		return t;
+	}
+
+	public void rasterize(Rasterizer rasterizer, int id) {
+		rasterizer.drawTriangle(p0, p1, p2, id);
+	}
+
+	public boolean bounds(Vector3f min, Vector3f max) {
+		min.set(Math.min(p0.x, Math.min(p1.x, p2.x)), Math.min(p0.y, Math.min(p1.y, p2.y)), Math.min(p0.z, Math.min(p1.z, p2.z)));
+		max.set(Math.max(p0.x, Math.max(p1.x, p2.x)), Math.max(p0.y, Math.max(p1.y, p2.y)), Math.max(p0.z, Math.max(p1.z, p2.z)));
+		return true;
+	}
+
+	public void setTransform(Matrix4f m) {
+		if (rest == null)
+			rest = new Vector3f[] {new Vector3f(p0), new Vector3f(p1), new Vector3f(p2),
+								   new Vector3f(n0), new Vector3f(n1), new Vector3f(n2)};
+		Vector3f p[] = new Vector3f[6];
+		for (int k = 0; k < 6; k++) {
+			if (k < 3) {
+				Point3f point = new Point3f(rest[k]);
+				m.transform(point);
+				p[k] = new Vector3f(point);
+			} else {
+				p[k] = new Vector3f(rest[k]);
+				m.transform(p[k]);
+				p[k].normalize();	// no shear, so normals turn like directions
+			}
+		}
+		p0 = p[0];
+		p1 = p[1];
+		p2 = p[2];
+		n0 = p[3];
+		n1 = p[4];
+		n2 = p[5];
+		if (t0 != null)
+			updateUvScale();
+	}
 }